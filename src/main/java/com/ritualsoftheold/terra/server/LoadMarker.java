@@ -33,11 +33,21 @@ public abstract class LoadMarker extends MovingMarker implements WorldLoadListen
 
     private ArrayList<Integer> playerOctants;
 
+    /**
+     * Position where world last updated loaded area of this marker.
+     */
+    private volatile float updatedX;
+    private volatile float updatedY;
+    private volatile float updatedZ;
+
     protected LoadMarker(float x, float y, float z, float hardRadius, float softRadius) {
         super(x, y, z);
         this.hardRadius = hardRadius;
         this.softRadius = softRadius;
         playerOctants = new ArrayList<>();
+        this.updatedX = x;
+        this.updatedY = y;
+        this.updatedZ = z;
     }
 
     @Override
@@ -45,10 +55,23 @@ public abstract class LoadMarker extends MovingMarker implements WorldLoadListen
         sendChunk(chunk);
     }
 
+    /**
+     * Called when a chunk leaves soft radius of this marker. The chunk may
+     * still be loaded for other markers; it is released only after all of
+     * them have unloaded it.
+     *
+     * @param chunk Chunk that was unloaded.
+     */
     @Override
     public void chunkUnloaded(ChunkLArray chunk) {
     }
 
+    /**
+     * Sends a chunk to whoever this marker represents. When world generates
+     * chunks in parallel, this may be called from multiple threads at once.
+     *
+     * @param chunk Chunk that was loaded.
+     */
     public abstract void sendChunk(ChunkLArray chunk);
 
     public abstract void sendOctree(OffheapOctree octree);
@@ -75,6 +98,29 @@ public abstract class LoadMarker extends MovingMarker implements WorldLoadListen
         return playerOctants.get(index);
     }
 
+    /**
+     * Remembers current position as the one where loaded area was last
+     * updated.
+     */
+    public void markUpdated() {
+        updatedX = getPosX();
+        updatedY = getPosY();
+        updatedZ = getPosZ();
+    }
+
+    /**
+     * Gets how far this marker has moved since loaded area was last updated.
+     * Squared to avoid sqrt.
+     *
+     * @return Squared distance.
+     */
+    public float getMovedSinceUpdate() {
+        float dx = getPosX() - updatedX;
+        float dy = getPosY() - updatedY;
+        float dz = getPosZ() - updatedZ;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
     public float getHardRadius() {
         return hardRadius;
     }
@@ -0,0 +1,440 @@
+package com.ritualsoftheold.terra.server.world;
+
+import com.ritualsoftheold.terra.core.WorldLoadListener;
+import com.ritualsoftheold.terra.core.chunk.ChunkLArray;
+import com.ritualsoftheold.terra.core.materials.Registry;
+import com.ritualsoftheold.terra.core.materials.TerraModule;
+import com.ritualsoftheold.terra.server.MemoryUseListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chunk generator which remembers recently generated chunks, so that
+ * chunks which are requested again are not generated from scratch.
+ * <p>
+ * Chunk data lives in offheap memory of {@link ChunkLArray}s; this keeps
+ * references to a bounded amount of them. While a chunk is loaded, world
+ * generator owns it. When it is released, the cache takes it over if it is
+ * still cached, and reports memory it holds to given memory use listener.
+ * Chunks that the cache owns are freed through release listener when they
+ * are evicted or {@link #trim(long) trimmed}, and handed over again on
+ * cache hits. Chunks that are loaded are not served from cache. When cache
+ * is full, CLOCK (second-chance) algorithm chooses which chunk to evict.
+ */
+public class CachingChunkGenerator implements ChunkGenerator {
+
+    /**
+     * Generator that is used on cache misses.
+     */
+    private final ChunkGenerator generator;
+
+    /**
+     * Notified when owned chunks enter or leave the cache.
+     */
+    private final MemoryUseListener memListener;
+
+    /**
+     * Memory used by data of one chunk.
+     */
+    private final long chunkSize;
+
+    /**
+     * Frees chunks that the cache owns, or null.
+     */
+    private volatile WorldLoadListener releaseListener;
+
+    /**
+     * Cache keys of chunks in slots.
+     */
+    private final long[] keys;
+
+    /**
+     * Cached chunks. Slots above count are empty.
+     */
+    private final ChunkLArray[] chunks;
+
+    /**
+     * Set when a chunk is used, cleared when clock hand passes it.
+     */
+    private final boolean[] referenced;
+
+    /**
+     * Set when cache owns the chunk, i.e. it is not loaded.
+     */
+    private final boolean[] owned;
+
+    /**
+     * Slot indices by cache keys.
+     */
+    private final Map<Long, Integer> slots;
+
+    /**
+     * Slot indices by chunks, for taking them over.
+     */
+    private final Map<ChunkLArray, Integer> chunkSlots;
+
+    /**
+     * Current position of the clock hand.
+     */
+    private int hand;
+
+    /**
+     * How many slots are in use.
+     */
+    private int count;
+
+    /**
+     * How many chunks the cache owns.
+     */
+    private int ownedCount;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    /**
+     * Creates a new chunk cache.
+     *
+     * @param generator   Generator to use when chunk is not cached.
+     * @param capacity    Maximum amount of cached chunks.
+     * @param chunkSize   Memory used by data of one chunk, in bytes.
+     * @param memListener Memory use listener to notify.
+     */
+    public CachingChunkGenerator(ChunkGenerator generator, int capacity, long chunkSize, MemoryUseListener memListener) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.generator = generator;
+        this.memListener = memListener;
+        this.chunkSize = chunkSize;
+        this.keys = new long[capacity];
+        this.chunks = new ChunkLArray[capacity];
+        this.referenced = new boolean[capacity];
+        this.owned = new boolean[capacity];
+        this.slots = new HashMap<>(capacity * 2);
+        this.chunkSlots = new IdentityHashMap<>(capacity * 2);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    @Override
+    public ChunkLArray getChunk(float posX, float posY, float posZ) {
+        long key = keyOf(posX, posY, posZ);
+        ChunkLArray chunk = lookup(key);
+        if (chunk != null) {
+            hits.increment();
+            return chunk;
+        }
+
+        misses.increment();
+        chunk = generator.getChunk(posX, posY, posZ);
+        if (chunk != null) {
+            free(insert(key, chunk));
+        }
+        return chunk;
+    }
+
+    @Override
+    public ChunkLArray[] getColumn(float posX, float posZ, float[] posYs) {
+        ChunkLArray[] chunks = new ChunkLArray[posYs.length];
+        long[] keys = new long[posYs.length];
+
+        // Serve what we can from cache, collect rest for one batch
+        int missCount = 0;
+        for (int i = 0; i < posYs.length; i++) {
+            keys[i] = keyOf(posX, posYs[i], posZ);
+            chunks[i] = lookup(keys[i]);
+            if (chunks[i] == null) {
+                missCount++;
+            }
+        }
+        hits.add(posYs.length - missCount);
+        misses.add(missCount);
+        if (missCount == 0) {
+            return chunks;
+        }
+
+        float[] missYs = new float[missCount];
+        int[] missIndices = new int[missCount];
+        for (int i = 0, j = 0; i < posYs.length; i++) {
+            if (chunks[i] == null) {
+                missYs[j] = posYs[i];
+                missIndices[j] = i;
+                j++;
+            }
+        }
+
+        ChunkLArray[] generated = generator.getColumn(posX, posZ, missYs);
+        for (int j = 0; j < missCount; j++) {
+            int i = missIndices[j];
+            chunks[i] = generated[j];
+            if (chunks[i] != null) {
+                free(insert(keys[i], chunks[i]));
+            }
+        }
+        return chunks;
+    }
+
+    @Override
+    public boolean supportsBatching() {
+        return generator.supportsBatching();
+    }
+
+    @Override
+    public void setMaterials(TerraModule mod, Registry reg) {
+        generator.setMaterials(mod, reg);
+    }
+
+    /**
+     * Packs chunk coordinates of given world position to a cache key.
+     */
+    private static long keyOf(float x, float y, float z) {
+        return ((long) (Sector.toChunk(x) & 0x1fffff) << 42)
+                | ((long) (Sector.toChunk(y) & 0x1fffff) << 21)
+                | (Sector.toChunk(z) & 0x1fffff);
+    }
+
+    /**
+     * Hands a cached chunk over to caller, who must load or release it.
+     *
+     * @param key Cache key.
+     * @return Chunk, or null if it is not cached or it is loaded.
+     */
+    private synchronized ChunkLArray lookup(long key) {
+        Integer slot = slots.get(key);
+        if (slot == null || !owned[slot]) { // Loaded chunks are for world generator to share
+            return null;
+        }
+        referenced[slot] = true;
+        disown(slot);
+        return chunks[slot];
+    }
+
+    /**
+     * Caches a chunk that caller owns.
+     *
+     * @param key   Cache key.
+     * @param chunk Chunk.
+     * @return Chunk that was evicted and must be freed, or null.
+     */
+    private synchronized ChunkLArray insert(long key, ChunkLArray chunk) {
+        Integer existing = slots.get(key);
+        if (existing != null) { // Generated concurrently, keep the newer one
+            ChunkLArray replaced = forget(existing);
+            chunkSlots.put(chunk, existing);
+            chunks[existing] = chunk;
+            referenced[existing] = true;
+            return replaced;
+        }
+
+        int slot;
+        ChunkLArray evicted = null;
+        if (count < chunks.length) { // Free slots left
+            slot = count++;
+        } else { // Find a chunk that has not been used since hand last passed it
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % chunks.length;
+            }
+            slot = hand;
+            hand = (hand + 1) % chunks.length;
+
+            slots.remove(keys[slot]);
+            evicted = forget(slot);
+        }
+
+        keys[slot] = key;
+        chunks[slot] = chunk;
+        referenced[slot] = false; // Must be used again to get a second chance
+        slots.put(key, slot);
+        chunkSlots.put(chunk, slot);
+        return evicted;
+    }
+
+    /**
+     * Forgets chunk of a slot, without emptying the slot.
+     *
+     * @param slot Slot index.
+     * @return Chunk if cache owned it and it must be freed, or null.
+     */
+    private ChunkLArray forget(int slot) {
+        ChunkLArray chunk = chunks[slot];
+        chunkSlots.remove(chunk);
+        if (!owned[slot]) {
+            return null; // Still loaded
+        }
+        disown(slot);
+        return chunk;
+    }
+
+    private void disown(int slot) {
+        owned[slot] = false;
+        ownedCount--;
+        memListener.onFree(chunkSize);
+    }
+
+    /**
+     * Frees a chunk that has left the cache.
+     *
+     * @param chunk Chunk, or null.
+     */
+    private void free(ChunkLArray chunk) {
+        WorldLoadListener listener = releaseListener;
+        if (chunk != null && listener != null) {
+            listener.chunkUnloaded(chunk);
+        }
+    }
+
+    /**
+     * Takes over a chunk which is no longer loaded, if it is cached.
+     * Caller must not use the chunk afterwards.
+     *
+     * @param chunk Chunk.
+     * @return If cache took the chunk; otherwise, caller should free it.
+     */
+    public synchronized boolean adopt(ChunkLArray chunk) {
+        Integer slot = chunkSlots.get(chunk);
+        if (slot == null) {
+            return false;
+        }
+        if (!owned[slot]) {
+            owned[slot] = true;
+            ownedCount++;
+            memListener.onAllocate(chunkSize);
+        }
+        return true;
+    }
+
+    /**
+     * Frees chunks that the cache owns, least recently used first, until
+     * enough memory has been freed. Loaded chunks are kept cached.
+     *
+     * @param goal How much memory should be freed, in bytes.
+     * @return How much was freed.
+     */
+    public long trim(long goal) {
+        List<ChunkLArray> trimmed = new ArrayList<>();
+        synchronized (this) {
+            // One pass to clear references and one to pick what is left
+            for (int i = 0; i < count * 2 && ownedCount > 0 && trimmed.size() * chunkSize < goal; i++) {
+                int slot = hand;
+                if (owned[slot] && !referenced[slot]) {
+                    trimmed.add(chunks[slot]);
+                    remove(slot); // Moves last slot here, look at it again
+                    continue;
+                }
+                referenced[slot] = false;
+                hand = (hand + 1) % count;
+            }
+        }
+        for (ChunkLArray chunk : trimmed) {
+            free(chunk);
+        }
+        return trimmed.size() * chunkSize;
+    }
+
+    /**
+     * Removes a slot, moving last used slot there.
+     *
+     * @param slot Slot index.
+     */
+    private void remove(int slot) {
+        slots.remove(keys[slot]);
+        forget(slot);
+
+        // Move last used slot here, so that slots below count stay in use
+        int last = --count;
+        if (slot != last) {
+            keys[slot] = keys[last];
+            chunks[slot] = chunks[last];
+            referenced[slot] = referenced[last];
+            owned[slot] = owned[last];
+            slots.put(keys[slot], slot);
+            chunkSlots.put(chunks[slot], slot);
+        }
+        chunks[last] = null;
+        referenced[last] = false;
+        owned[last] = false;
+        if (hand >= count) {
+            hand = 0;
+        }
+    }
+
+    /**
+     * Removes all chunks from this cache, freeing ones that it owns.
+     */
+    public void clear() {
+        List<ChunkLArray> cleared = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                ChunkLArray chunk = forget(i);
+                if (chunk != null) {
+                    cleared.add(chunk);
+                }
+                chunks[i] = null;
+                referenced[i] = false;
+            }
+            slots.clear();
+            count = 0;
+            hand = 0;
+        }
+        for (ChunkLArray chunk : cleared) {
+            free(chunk);
+        }
+    }
+
+    /**
+     * Sets listener which frees chunks that the cache owns. World generator
+     * uses same listener for chunks that it releases.
+     *
+     * @param listener Release listener.
+     */
+    public void setReleaseListener(WorldLoadListener listener) {
+        this.releaseListener = listener;
+    }
+
+    /**
+     * Gets how many requests were served from cache.
+     *
+     * @return Hit count.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets how many requests had to be generated.
+     *
+     * @return Miss count.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets how many chunks are currently cached.
+     *
+     * @return Chunk count.
+     */
+    public synchronized int getSize() {
+        return count;
+    }
+
+    /**
+     * Gets how many cached chunks are not loaded, so that their memory
+     * belongs to this cache.
+     *
+     * @return Owned chunk count.
+     */
+    public synchronized int getOwnedCount() {
+        return ownedCount;
+    }
+
+    public int getCapacity() {
+        return chunks.length;
+    }
+}
@@ -7,5 +7,36 @@ import com.ritualsoftheold.terra.core.materials.TerraModule;
 public interface ChunkGenerator {
     ChunkLArray getChunk(float posX, float posY, float posZ);
 
+    /**
+     * Generates a vertical column of chunks at once. Generators which can
+     * share work between chunks with same X and Z coordinates (noise setup,
+     * biome lookups, height sampling) should override this together with
+     * {@link #supportsBatching()}. By default, chunks are generated one by
+     * one.
+     *
+     * @param posX  World X coordinate of the column.
+     * @param posZ  World Z coordinate of the column.
+     * @param posYs World Y coordinates of chunks in the column.
+     * @return Chunks in same order as Y coordinates.
+     */
+    default ChunkLArray[] getColumn(float posX, float posZ, float[] posYs) {
+        ChunkLArray[] chunks = new ChunkLArray[posYs.length];
+        for (int i = 0; i < posYs.length; i++) {
+            chunks[i] = getChunk(posX, posYs[i], posZ);
+        }
+        return chunks;
+    }
+
+    /**
+     * Tells if {@link #getColumn(float, float, float[])} is faster than
+     * generating same chunks one by one. World generator groups its requests
+     * by column only if this returns true.
+     *
+     * @return If batching is supported.
+     */
+    default boolean supportsBatching() {
+        return false;
+    }
+
     void setMaterials(TerraModule mod, Registry reg);
 }
@@ -0,0 +1,55 @@
+package com.ritualsoftheold.terra.server.world;
+
+import com.ritualsoftheold.terra.core.DataConstants;
+import com.ritualsoftheold.terra.core.utils.Morton3D;
+
+/**
+ * Position of a chunk that is about to be generated. Ordered by Morton code,
+ * so that sorted positions form spatially compact runs.
+ */
+final class ChunkPosition implements Comparable<ChunkPosition> {
+
+    /**
+     * Chunk coordinates; not world coordinates.
+     */
+    final int x;
+    final int y;
+    final int z;
+
+    /**
+     * Morton code of chunk coordinates.
+     */
+    final long key;
+
+    ChunkPosition(int x, int y, int z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.key = Morton3D.encode(x, y, z);
+    }
+
+    /**
+     * Checks if a chunk can exist at given chunk coordinates. Negative X
+     * and Z are outside of world; Y may be negative.
+     */
+    static boolean isValid(int x, int y, int z) {
+        return x >= 0 && z >= 0;
+    }
+
+    float worldX() {
+        return x * DataConstants.CHUNK_SCALE;
+    }
+
+    float worldY() {
+        return y * DataConstants.CHUNK_SCALE;
+    }
+
+    float worldZ() {
+        return z * DataConstants.CHUNK_SCALE;
+    }
+
+    @Override
+    public int compareTo(ChunkPosition other) {
+        return Long.compare(key, other.key);
+    }
+}
@@ -0,0 +1,190 @@
+package com.ritualsoftheold.terra.server.world;
+
+import com.ritualsoftheold.terra.server.LoadMarker;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Orders pending chunk generation of a single load marker so that chunks
+ * closest to the marker are generated first. Chunks are handed out shell by
+ * shell around the marker's chunk; inside a shell, Morton order is used to
+ * keep consecutive chunks close to each other.
+ * <p>
+ * When the marker moves to another chunk, pending work is reordered around
+ * the new position and chunks that have left the soft sector are cancelled.
+ */
+final class GenerationScheduler {
+
+    private final LoadMarker marker;
+
+    /**
+     * Chunks waiting to be generated.
+     */
+    private PriorityQueue<ChunkPosition> pending;
+
+    /**
+     * Morton codes of chunks that are either pending or being generated.
+     */
+    private final Set<Long> tracked;
+
+    /**
+     * Chunk that pending queue is currently ordered around.
+     */
+    private int centerX;
+    private int centerY;
+    private int centerZ;
+
+    /**
+     * Edge length of sector outside which pending work is cancelled.
+     */
+    private int softSize;
+
+    /**
+     * How many chunks have been cancelled before generation.
+     */
+    private long cancelled;
+
+    GenerationScheduler(LoadMarker marker, int softSize) {
+        this.marker = marker;
+        this.softSize = softSize;
+        this.tracked = new HashSet<>();
+        this.centerX = Sector.toChunk(marker.getPosX());
+        this.centerY = Sector.toChunk(marker.getPosY());
+        this.centerZ = Sector.toChunk(marker.getPosZ());
+        this.pending = new PriorityQueue<>(closestFirst(centerX, centerY, centerZ));
+    }
+
+    /**
+     * Queues a chunk for generation, unless it is already pending or being
+     * generated.
+     *
+     * @param pos Chunk position.
+     * @return If the chunk was queued.
+     */
+    synchronized boolean submit(ChunkPosition pos) {
+        if (!tracked.add(pos.key)) {
+            return false;
+        }
+        pending.add(pos);
+        return true;
+    }
+
+    /**
+     * Takes the chunk closest to the marker. If marker has moved to another
+     * chunk since last call, pending work is reprioritized first. Caller must
+     * call {@link #done(ChunkPosition)} once it has generated the chunk.
+     *
+     * @return Chunk position or null, if nothing is pending.
+     */
+    synchronized ChunkPosition poll() {
+        int x = Sector.toChunk(marker.getPosX());
+        int y = Sector.toChunk(marker.getPosY());
+        int z = Sector.toChunk(marker.getPosZ());
+        if (x != centerX || y != centerY || z != centerZ) {
+            reprioritize(x, y, z);
+        }
+
+        return pending.poll();
+    }
+
+    /**
+     * Takes all pending chunks in same column as given chunk. Caller must
+     * call {@link #done(ChunkPosition)} for each of them once generated.
+     *
+     * @param first Chunk that was returned by {@link #poll()}.
+     * @param limit Maximum amount of chunks in the column, including first.
+     * @return First chunk followed by rest of the column.
+     */
+    synchronized List<ChunkPosition> pollColumn(ChunkPosition first, int limit) {
+        List<ChunkPosition> column = new ArrayList<>();
+        column.add(first);
+        for (Iterator<ChunkPosition> it = pending.iterator(); it.hasNext() && column.size() < limit; ) {
+            ChunkPosition pos = it.next();
+            if (pos.x == first.x && pos.z == first.z) {
+                column.add(pos);
+                it.remove();
+            }
+        }
+        return column;
+    }
+
+    /**
+     * Marks a chunk returned by {@link #poll()} as generated.
+     *
+     * @param pos Chunk position.
+     */
+    synchronized void done(ChunkPosition pos) {
+        tracked.remove(pos.key);
+    }
+
+    /**
+     * Cancels all pending work.
+     */
+    synchronized void cancelAll() {
+        for (ChunkPosition pos : pending) {
+            tracked.remove(pos.key);
+        }
+        cancelled += pending.size();
+        pending.clear();
+    }
+
+    /**
+     * Changes size of sector outside of which pending work is cancelled.
+     *
+     * @param softSize Edge length of soft sector in chunks.
+     */
+    synchronized void setSoftSize(int softSize) {
+        this.softSize = softSize;
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    synchronized long getCancelledCount() {
+        return cancelled;
+    }
+
+    /**
+     * Orders pending chunks around given chunk and drops those that are
+     * no longer in soft sector around it.
+     */
+    private void reprioritize(int x, int y, int z) {
+        centerX = x;
+        centerY = y;
+        centerZ = z;
+
+        int offset = (softSize - 1) / 2;
+        Sector soft = new Sector(x - offset, y - offset, z - offset, softSize);
+
+        PriorityQueue<ChunkPosition> reordered = new PriorityQueue<>(Math.max(1, pending.size()),
+                closestFirst(x, y, z));
+        for (ChunkPosition pos : pending) {
+            if (soft.contains(pos.x, pos.y, pos.z)) {
+                reordered.add(pos);
+            } else { // Nobody will see this chunk
+                tracked.remove(pos.key);
+                cancelled++;
+            }
+        }
+        pending = reordered;
+    }
+
+    private static Comparator<ChunkPosition> closestFirst(int x, int y, int z) {
+        return Comparator.<ChunkPosition>comparingInt(pos -> shell(pos, x, y, z))
+                .thenComparingLong(pos -> pos.key);
+    }
+
+    /**
+     * Gets index of the cube shell around given chunk that a chunk is in.
+     */
+    private static int shell(ChunkPosition pos, int x, int y, int z) {
+        return Math.max(Math.abs(pos.x - x), Math.max(Math.abs(pos.y - y), Math.abs(pos.z - z)));
+    }
+}
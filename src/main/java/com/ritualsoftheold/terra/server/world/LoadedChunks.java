@@ -0,0 +1,150 @@
+package com.ritualsoftheold.terra.server.world;
+
+import com.ritualsoftheold.terra.core.WorldLoadListener;
+import com.ritualsoftheold.terra.core.chunk.ChunkLArray;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reference counts of loaded chunks. Every load marker that has a chunk
+ * loaded in its soft sector holds one reference to it. Once the last
+ * reference is dropped, the chunk is released and reported to the release
+ * listener.
+ */
+final class LoadedChunks {
+
+    private static final class Entry {
+
+        private final ChunkLArray chunk;
+
+        /**
+         * Only modified inside map compute functions.
+         */
+        private int refs;
+
+        private Entry(ChunkLArray chunk) {
+            this.chunk = chunk;
+        }
+    }
+
+    /**
+     * Loaded chunks by their Morton codes.
+     */
+    private final Map<Long, Entry> chunks;
+
+    /**
+     * Notified when a chunk is no longer used by any marker.
+     */
+    private volatile WorldLoadListener releaseListener;
+
+    /**
+     * Cache that may refer to loaded chunks, or null.
+     */
+    private final CachingChunkGenerator cache;
+
+    LoadedChunks(CachingChunkGenerator cache) {
+        this.chunks = new ConcurrentHashMap<>();
+        this.cache = cache;
+    }
+
+    /**
+     * Adds a reference to a chunk if it is loaded.
+     *
+     * @param key Morton code of chunk.
+     * @return Chunk or null, if it is not loaded.
+     */
+    ChunkLArray acquireIfPresent(long key) {
+        Entry entry = chunks.computeIfPresent(key, (k, e) -> {
+            e.refs++;
+            return e;
+        });
+        return entry != null ? entry.chunk : null;
+    }
+
+    /**
+     * Adds a reference to a chunk. If it is not yet loaded, given chunk
+     * is registered.
+     *
+     * @param key   Morton code of chunk.
+     * @param chunk The chunk.
+     * @return Chunk that is registered. If it is not given chunk, caller
+     * should {@link #discard(ChunkLArray) discard} the given one.
+     */
+    ChunkLArray acquire(long key, ChunkLArray chunk) {
+        Entry entry = chunks.compute(key, (k, e) -> {
+            if (e == null) {
+                e = new Entry(chunk);
+            }
+            e.refs++;
+            return e;
+        });
+        return entry.chunk;
+    }
+
+    /**
+     * Drops a reference to a chunk. If it was the last one, chunk is
+     * released; if it is cached, the cache takes it over instead.
+     *
+     * @param key Morton code of chunk.
+     */
+    void release(long key) {
+        Entry[] released = new Entry[1];
+        chunks.computeIfPresent(key, (k, entry) -> {
+            if (--entry.refs > 0) {
+                return entry;
+            }
+            // Last reference, forget the chunk
+            // Cache takes it before anyone can load it again
+            if (cache == null || !cache.adopt(entry.chunk)) {
+                released[0] = entry;
+            }
+            return null;
+        });
+
+        if (released[0] != null) {
+            free(released[0].chunk);
+        }
+    }
+
+    /**
+     * Releases a chunk that is not registered, e.g. a duplicate that was
+     * generated concurrently.
+     *
+     * @param chunk The chunk.
+     */
+    void discard(ChunkLArray chunk) {
+        if (cache == null || !cache.adopt(chunk)) {
+            free(chunk);
+        }
+    }
+
+    private void free(ChunkLArray chunk) {
+        WorldLoadListener listener = releaseListener;
+        if (listener != null) {
+            listener.chunkUnloaded(chunk);
+        }
+    }
+
+    /**
+     * Gets how many markers hold given chunk.
+     *
+     * @param key Morton code of chunk.
+     * @return Reference count.
+     */
+    int getRefCount(long key) {
+        Entry entry = chunks.get(key);
+        return entry != null ? entry.refs : 0;
+    }
+
+    int size() {
+        return chunks.size();
+    }
+
+    void setReleaseListener(WorldLoadListener listener) {
+        this.releaseListener = listener;
+        if (cache != null) { // Cache frees chunks it has taken over
+            cache.setReleaseListener(listener);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.ritualsoftheold.terra.server.world;
+
+import com.ritualsoftheold.terra.core.utils.Morton3D;
+import com.ritualsoftheold.terra.server.LoadMarker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Spatial index of load markers. World is divided to cubic regions of
+ * chunks, and each marker is registered to all regions that its sector
+ * overlaps. Regions are keyed by Morton codes of their coordinates.
+ * <p>
+ * Finding markers which cover a chunk only needs to look at markers of
+ * one region, instead of every marker in the world.
+ */
+final class MarkerIndex {
+
+    /**
+     * Region size is 2 to power of this, in chunks.
+     */
+    private static final int REGION_SHIFT = 3;
+
+    /**
+     * Markers by Morton codes of regions they overlap.
+     */
+    private final Map<Long, Set<LoadMarker>> regions;
+
+    /**
+     * Sectors that markers are currently registered with.
+     */
+    private final Map<LoadMarker, Sector> sectors;
+
+    MarkerIndex() {
+        this.regions = new ConcurrentHashMap<>();
+        this.sectors = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Registers a marker with given sector, or moves it there if it is
+     * already registered. Only regions which the marker entered or left are
+     * touched. Updates for a single marker must not run concurrently.
+     *
+     * @param marker Load marker.
+     * @param sector Sector that the marker covers.
+     */
+    void update(LoadMarker marker, Sector sector) {
+        Sector old = sectors.put(marker, sector);
+        Sector newRegions = toRegions(sector);
+        Sector oldRegions = old != null ? toRegions(old) : null;
+        if (newRegions.equals(oldRegions)) {
+            return; // Moved inside same regions
+        }
+
+        newRegions.forEach(oldRegions, (x, y, z) -> {
+            if (ChunkPosition.isValid(x, y, z)) {
+                regions.compute(Morton3D.encode(x, y, z), (key, markers) -> {
+                    if (markers == null) {
+                        markers = ConcurrentHashMap.newKeySet();
+                    }
+                    markers.add(marker);
+                    return markers;
+                });
+            }
+        });
+        if (oldRegions != null) {
+            oldRegions.forEach(newRegions, (x, y, z) -> leave(marker, x, y, z));
+        }
+    }
+
+    /**
+     * Removes a marker from this index.
+     *
+     * @param marker Load marker.
+     */
+    void remove(LoadMarker marker) {
+        Sector old = sectors.remove(marker);
+        if (old != null) {
+            toRegions(old).forEach(null, (x, y, z) -> leave(marker, x, y, z));
+        }
+    }
+
+    boolean contains(LoadMarker marker) {
+        return sectors.containsKey(marker);
+    }
+
+    /**
+     * Gets markers whose sectors contain given chunk.
+     *
+     * @param x Chunk X coordinate.
+     * @param y Chunk Y coordinate.
+     * @param z Chunk Z coordinate.
+     * @return Markers covering the chunk.
+     */
+    List<LoadMarker> getMarkersCovering(int x, int y, int z) {
+        Set<LoadMarker> candidates = candidates(x, y, z);
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<LoadMarker> markers = new ArrayList<>(candidates.size());
+        for (LoadMarker marker : candidates) {
+            Sector sector = sectors.get(marker);
+            if (sector != null && sector.contains(x, y, z)) {
+                markers.add(marker);
+            }
+        }
+        return markers;
+    }
+
+    /**
+     * Checks if given chunk is covered by a marker other than given one.
+     *
+     * @param marker Marker to ignore.
+     * @param x      Chunk X coordinate.
+     * @param y      Chunk Y coordinate.
+     * @param z      Chunk Z coordinate.
+     * @return If some other marker covers the chunk.
+     */
+    boolean isCoveredByOthers(LoadMarker marker, int x, int y, int z) {
+        for (LoadMarker other : candidates(x, y, z)) {
+            if (other != marker) {
+                Sector sector = sectors.get(other);
+                if (sector != null && sector.contains(x, y, z)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Visits chunks of a marker's sector that no other marker covers.
+     *
+     * @param marker  Load marker.
+     * @param visitor Visitor for chunk coordinates.
+     */
+    void forEachExclusive(LoadMarker marker, Sector.Visitor visitor) {
+        Sector sector = sectors.get(marker);
+        if (sector == null) {
+            return;
+        }
+        sector.forEach(null, (x, y, z) -> {
+            if (!isCoveredByOthers(marker, x, y, z)) {
+                visitor.visit(x, y, z);
+            }
+        });
+    }
+
+    private Set<LoadMarker> candidates(int x, int y, int z) {
+        if (!ChunkPosition.isValid(x, y, z)) {
+            return Collections.emptySet();
+        }
+        Set<LoadMarker> markers = regions.get(Morton3D.encode(x >> REGION_SHIFT, y >> REGION_SHIFT, z >> REGION_SHIFT));
+        return markers != null ? markers : Collections.emptySet();
+    }
+
+    private void leave(LoadMarker marker, int x, int y, int z) {
+        if (!ChunkPosition.isValid(x, y, z)) {
+            return;
+        }
+        regions.computeIfPresent(Morton3D.encode(x, y, z), (key, markers) -> {
+            markers.remove(marker);
+            return markers.isEmpty() ? null : markers; // Forget empty regions
+        });
+    }
+
+    /**
+     * Converts a sector of chunks to sector of regions that it overlaps.
+     */
+    private static Sector toRegions(Sector sector) {
+        if (sector.size == 0) {
+            return Sector.EMPTY;
+        }
+        int minX = sector.minX >> REGION_SHIFT;
+        int minY = sector.minY >> REGION_SHIFT;
+        int minZ = sector.minZ >> REGION_SHIFT;
+        int maxX = (sector.minX + sector.size - 1) >> REGION_SHIFT;
+        int maxY = (sector.minY + sector.size - 1) >> REGION_SHIFT;
+        int maxZ = (sector.minZ + sector.size - 1) >> REGION_SHIFT;
+
+        // Largest span keeps this a cube; extra regions only cost a filtered lookup
+        int size = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) + 1;
+        return new Sector(minX, minY, minZ, size);
+    }
+}
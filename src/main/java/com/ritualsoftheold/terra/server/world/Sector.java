@@ -0,0 +1,114 @@
+package com.ritualsoftheold.terra.server.world;
+
+import com.ritualsoftheold.terra.core.DataConstants;
+
+/**
+ * Cube of chunks around a load marker. All coordinates are in chunks, i.e.
+ * world coordinates divided by {@link DataConstants#CHUNK_SCALE}.
+ */
+final class Sector {
+
+    /**
+     * Receives chunk coordinates when iterating over a sector.
+     */
+    @FunctionalInterface
+    interface Visitor {
+        void visit(int x, int y, int z);
+    }
+
+    /**
+     * Sector that contains no chunks.
+     */
+    static final Sector EMPTY = new Sector(0, 0, 0, 0);
+
+    final int minX;
+    final int minY;
+    final int minZ;
+
+    /**
+     * Length of sector edge in chunks.
+     */
+    final int size;
+
+    Sector(int minX, int minY, int minZ, int size) {
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.size = size;
+    }
+
+    /**
+     * Creates a sector centered on the chunk which contains given world
+     * position.
+     *
+     * @param x    World X coordinate.
+     * @param y    World Y coordinate.
+     * @param z    World Z coordinate.
+     * @param size Length of sector edge in chunks.
+     * @return A new sector.
+     */
+    static Sector around(float x, float y, float z, int size) {
+        int offset = (size - 1) / 2;
+        return new Sector(toChunk(x) - offset, toChunk(y) - offset, toChunk(z) - offset, size);
+    }
+
+    /**
+     * Converts a world coordinate to chunk coordinate.
+     *
+     * @param coord World coordinate.
+     * @return Coordinate of chunk which contains it.
+     */
+    static int toChunk(float coord) {
+        return (int) Math.floor(coord / DataConstants.CHUNK_SCALE);
+    }
+
+    boolean contains(int x, int y, int z) {
+        return x >= minX && x < minX + size
+                && y >= minY && y < minY + size
+                && z >= minZ && z < minZ + size;
+    }
+
+    int volume() {
+        return size * size * size;
+    }
+
+    /**
+     * Visits all chunks of this sector that are not in the excluded sector.
+     * Rows that overlap with excluded sector are skipped as a whole, so
+     * visiting the difference of two nearby sectors is cheap.
+     *
+     * @param exclude Sector which chunks to skip, or null to visit all.
+     * @param visitor Visitor for chunk coordinates.
+     */
+    void forEach(Sector exclude, Visitor visitor) {
+        int maxX = minX + size;
+        for (int z = minZ; z < minZ + size; z++) {
+            for (int y = minY; y < minY + size; y++) {
+                boolean overlaps = exclude != null
+                        && y >= exclude.minY && y < exclude.minY + exclude.size
+                        && z >= exclude.minZ && z < exclude.minZ + exclude.size;
+                for (int x = minX; x < maxX; x++) {
+                    if (overlaps && x >= exclude.minX && x < exclude.minX + exclude.size) {
+                        x = exclude.minX + exclude.size - 1; // Skip to end of excluded row
+                        continue;
+                    }
+                    visitor.visit(x, y, z);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Sector)) {
+            return false;
+        }
+        Sector other = (Sector) obj;
+        return minX == other.minX && minY == other.minY && minZ == other.minZ && size == other.size;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((minX * 31 + minY) * 31 + minZ) * 31 + size;
+    }
+}
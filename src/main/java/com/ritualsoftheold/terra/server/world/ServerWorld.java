@@ -6,10 +6,23 @@ import com.ritualsoftheold.terra.core.TerraWorld;
 import com.ritualsoftheold.terra.core.WorldLoadListener;
 import com.ritualsoftheold.terra.core.materials.Registry;
 import com.ritualsoftheold.terra.server.LoadMarker;
+import com.ritualsoftheold.terra.server.MarkerPositions;
+import com.ritualsoftheold.terra.server.chunk.ChunkStorage;
+
+import com.ritualsoftheold.terra.core.DataConstants;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents world that is mainly backed by offheap memory.
@@ -18,20 +31,87 @@ public class ServerWorld implements TerraWorld {
 
     public static final int MAX_LOAD_DISTANCE = 128;
 
+    /**
+     * Default distance that load markers must move before their loaded
+     * area is updated.
+     */
+    public static final float DEFAULT_UPDATE_DISTANCE = DataConstants.CHUNK_SCALE / 2f;
+
+    /**
+     * How many marker updates may wait for a thread before new ones are
+     * rejected.
+     */
+    private static final int MAX_QUEUED_UPDATES = 1024;
+
     // New world loader, no more huge methods in this class!
     private WorldGenerator chunkGenerator;
     public final OffheapOctree octree;
-    private List<Marker> loadMarkers;
+    private Set<Marker> loadMarkers;
     private Registry reg;
 
+    /**
+     * Runs load marker updates, so that callers never wait for them.
+     */
+    private final ExecutorService markerExecutor;
+
+    /**
+     * Updates that are queued or running, by their markers.
+     */
+    private final Map<LoadMarker, CompletableFuture<Void>> pendingUpdates;
+
+    /**
+     * Markers which have moved less than this are not updated. Squared.
+     */
+    private volatile float updateDistance;
+
+    /**
+     * Where memory manager sees load markers. May be null. Guarded by
+     * positionLock.
+     */
+    private MarkerPositions markerPositions;
+
+    /**
+     * Chunk storage that load markers of this world keep loaded. Guarded by
+     * positionLock.
+     */
+    private ChunkStorage markerStorage;
+
+    /**
+     * Orders publishing and removal of marker positions.
+     */
+    private final Object positionLock = new Object();
+
     public final int centerX;
     public final int centerY;
     public final int centerZ;
 
     public ServerWorld(int centerX, int centerY, int centerZ, ChunkGenerator generator, Registry reg, int worldSize) {
-        loadMarkers = new ArrayList<>();
+        this(centerX, centerY, centerZ, generator, reg, worldSize, null);
+    }
+
+    /**
+     * Creates a world which generates initial sectors in parallel.
+     *
+     * @param generationPool Pool for chunk generation. If null, chunks are
+     *                       generated on the thread that requested them.
+     */
+    public ServerWorld(int centerX, int centerY, int centerZ, ChunkGenerator generator, Registry reg, int worldSize,
+                       ForkJoinPool generationPool) {
+        loadMarkers = ConcurrentHashMap.newKeySet();
         this.reg = reg;
 
+        int updateThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(updateThreads, updateThreads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_UPDATES), runnable -> {
+                    Thread thread = new Thread(runnable, "Terra-MarkerUpdate");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        markerExecutor = executor;
+        pendingUpdates = new ConcurrentHashMap<>();
+        setUpdateDistance(DEFAULT_UPDATE_DISTANCE);
+
         int nodeLength = (int) Math.pow(2, (int) (Math.log(worldSize) / Math.log(2)) + 1);
 
         this.centerX = (centerX / 16) * 16 + MAX_LOAD_DISTANCE;
@@ -43,7 +123,7 @@ public class ServerWorld implements TerraWorld {
 
         System.out.println("Planet center: " + this.centerX + "," + this.centerY + "," + this.centerZ);
 
-        chunkGenerator = new WorldGenerator(nodeLength, maxOctreeSize, octree, generator);
+        chunkGenerator = new WorldGenerator(nodeLength, maxOctreeSize, octree, generator, generationPool);
     }
 
     @Override
@@ -53,15 +133,49 @@ public class ServerWorld implements TerraWorld {
 
     @Override
     public void removeMarker(Marker marker) {
-        loadMarkers.remove(marker);
+        loadMarkers.remove(marker); // Queued updates are skipped after this
+        if (marker instanceof LoadMarker) {
+            pendingUpdates.remove(marker);
+            chunkGenerator.removeSector((LoadMarker) marker);
+            synchronized (positionLock) {
+                if (markerPositions != null) {
+                    markerPositions.removeMarker(markerStorage, marker);
+                }
+            }
+        }
     }
 
     @Override
-    public void updateMarker(Marker marker) {}
+    public void updateMarker(Marker marker) {
+        if (marker instanceof LoadMarker) {
+            scheduleUpdate((LoadMarker) marker, true);
+        }
+    }
 
+    /**
+     * Checks if given marker has moved far enough that its loaded area
+     * should be updated.
+     *
+     * @param marker Marker to check.
+     * @return If the marker needs an update.
+     */
     @Override
     public boolean checkMarker(Marker marker) {
-        return false;
+        return marker instanceof LoadMarker && loadMarkers.contains(marker)
+                && ((LoadMarker) marker).getMovedSinceUpdate() >= updateDistance;
+    }
+
+    /**
+     * Gets load markers which keep the chunk at given position loaded, e.g.
+     * players who should receive changes to it.
+     *
+     * @param x World X coordinate.
+     * @param y World Y coordinate.
+     * @param z World Z coordinate.
+     * @return Load markers covering the chunk.
+     */
+    public List<LoadMarker> getMarkersCovering(float x, float y, float z) {
+        return chunkGenerator.getMarkersCovering(Sector.toChunk(x), Sector.toChunk(y), Sector.toChunk(z));
     }
 
     @Override
@@ -74,23 +188,90 @@ public class ServerWorld implements TerraWorld {
         // Starts initial generation
         if (marker instanceof LoadMarker) {
             LoadMarker loadMarker = (LoadMarker) marker;
+            loadMarker.markUpdated();
+            publishPosition(loadMarker);
             chunkGenerator.seekSector(loadMarker);
         }
     }
 
+    /**
+     * Updates loaded areas of markers asynchronously. Markers that have moved
+     * less than {@link #setUpdateDistance(float) update distance} are skipped,
+     * unless moved markers should be ignored.
+     *
+     * @param listener    Unused; markers receive their own chunks.
+     * @param soft        If soft radius should be used.
+     * @param ignoreMoved If all markers should be updated, moved or not.
+     * @return Futures that complete when updates are done.
+     */
     public List<CompletableFuture<Void>> updateLoadMarkers(WorldLoadListener listener, boolean soft, boolean ignoreMoved) {
-     /*   List<CompletableFuture<Void>> pendingMarkers = new ArrayList<>(loadMarkers.size());
+        List<CompletableFuture<Void>> pendingMarkers = new ArrayList<>(loadMarkers.size());
         // Delegate updating to async code, this might be costly
-        for (LoadMarker marker : loadMarkers) {
-            if (ignoreMoved || marker.hasMoved()) { // Update only marker that has been moved
-                // When player moves a little, DO NOT, I repeat, DO NOT just blindly move load marker.
-                // Move it when player has moved a few meters or so!
-                pendingMarkers.add(CompletableFuture.runAsync(() -> updateLoadMarker(marker, soft)));
+        for (Marker marker : loadMarkers) {
+            // When player moves a little, DO NOT, I repeat, DO NOT just blindly move load marker.
+            // Move it when player has moved a few meters or so!
+            if (marker instanceof LoadMarker && (ignoreMoved || checkMarker(marker))) {
+                pendingMarkers.add(scheduleUpdate((LoadMarker) marker, soft));
             }
-        }*/
+        }
+
+        return pendingMarkers;
+    }
+
+    /**
+     * Queues an update for given marker. If one is already queued or running,
+     * its future is returned instead.
+     *
+     * @param marker Load marker.
+     * @param soft   If soft radius should be used.
+     * @return Future that completes when update is done.
+     */
+    private CompletableFuture<Void> scheduleUpdate(LoadMarker marker, boolean soft) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> pending = pendingUpdates.putIfAbsent(marker, future);
+        if (pending != null) {
+            return pending;
+        }
 
-        // return pendingMarkers;
-        return null;
+        try {
+            markerExecutor.execute(() -> {
+                try {
+                    updateLoadMarker(marker, soft);
+                    pendingUpdates.remove(marker, future);
+                    future.complete(null);
+                } catch (Throwable e) {
+                    pendingUpdates.remove(marker, future);
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Too many updates queued; marker is still moved, so we'll retry later
+            pendingUpdates.remove(marker, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Sets listener that is notified through
+     * {@link WorldLoadListener#chunkUnloaded(com.ritualsoftheold.terra.core.chunk.ChunkLArray)}
+     * when no load marker keeps a chunk loaded anymore. Memory backing
+     * the chunk should be released there.
+     *
+     * @param listener Listener for released chunks.
+     */
+    public void setReleaseListener(WorldLoadListener listener) {
+        chunkGenerator.setReleaseListener(listener);
+    }
+
+    /**
+     * Sets how far load markers must move before their loaded areas are
+     * updated.
+     *
+     * @param distance Distance in world units.
+     */
+    public void setUpdateDistance(float distance) {
+        this.updateDistance = distance * distance;
     }
 
     /**
@@ -100,6 +281,43 @@ public class ServerWorld implements TerraWorld {
      * @param soft   If soft radius should be used.
      */
     public void updateLoadMarker(LoadMarker marker, boolean soft) {
+        if (!loadMarkers.contains(marker)) {
+            return; // Removed while update was queued
+        }
+        marker.markUpdated(); // Moves during update are handled next time
+        publishPosition(marker);
+        chunkGenerator.updateSector(marker, soft);
+    }
 
+    /**
+     * Sets where load marker positions are published for memory manager,
+     * so that it does not unload chunks near them. Chunk storage records
+     * positions of chunks that are created with
+     * {@link ChunkStorage#newChunk(float, float, float)} there; only their
+     * buffers are pinned.
+     *
+     * @param positions Marker positions, or null.
+     * @param storage   Chunk storage of this world. Markers pin only its
+     *                  buffers.
+     */
+    public void setMarkerPositions(MarkerPositions positions, ChunkStorage storage) {
+        synchronized (positionLock) {
+            this.markerPositions = positions;
+            this.markerStorage = storage;
+        }
+        if (storage != null) {
+            storage.setMarkerPositions(positions);
+        }
+    }
+
+    private void publishPosition(LoadMarker marker) {
+        synchronized (positionLock) {
+            if (markerPositions == null || !loadMarkers.contains(marker)) {
+                return; // Not published or removed, must not be pinned again
+            }
+            // Hard radius is in chunks, positions in world units
+            markerPositions.updateMarker(markerStorage, marker, marker.getPosX(), marker.getPosY(), marker.getPosZ(),
+                    marker.getHardRadius() * DataConstants.CHUNK_SCALE);
+        }
     }
 }
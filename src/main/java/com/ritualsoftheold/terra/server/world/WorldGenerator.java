@@ -9,6 +9,14 @@ import com.ritualsoftheold.terra.core.octrees.OffheapOctree;
 import com.ritualsoftheold.terra.core.utils.Morton3D;
 import org.apache.commons.collections4.map.MultiKeyMap;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 /**
  * Handles loading of offheap worlds. Usually this class is used by load
  * markers; direct usage is not recommended for application developers.
@@ -22,14 +30,127 @@ class WorldGenerator {
     private static final int MAX_OCTREE_NODE_SIZE = 256;
     private static final int MAX_OCTANT_LAYERS = 4;
 
+    /**
+     * Maximum amount of chunks that are generated in one column batch.
+     */
+    private static final int MAX_COLUMN_BATCH = ServerWorld.MAX_LOAD_DISTANCE / DataConstants.CHUNK_SCALE;
+
     private final int nodeLength;
     private final int maxOctreeSize;
 
+    /**
+     * Pool used to generate chunks in parallel. If null, chunks are generated
+     * on the calling thread.
+     */
+    private final ForkJoinPool generationPool;
+
+    /**
+     * Sectors of load markers that have been generated for.
+     */
+    private final Map<LoadMarker, SectorState> sectors;
+
+    /**
+     * Chunks that are currently being generated, by their Morton codes.
+     * Markers that need a chunk which is already being generated wait for
+     * it instead of generating it again.
+     */
+    private final Map<Long, CompletableFuture<ChunkLArray>> inFlight;
+
+    /**
+     * Soft sectors of load markers, indexed by location.
+     */
+    private final MarkerIndex markerIndex;
+
+    /**
+     * Chunks loaded by any marker, with reference counts.
+     */
+    private final LoadedChunks loadedChunks;
+
+    /**
+     * Sectors and loaded chunks of a single load marker.
+     */
+    private static class SectorState {
+
+        /**
+         * Chunks in this sector are generated.
+         */
+        private volatile Sector hard;
+
+        /**
+         * Chunks outside of this sector are unloaded.
+         */
+        private volatile Sector soft;
+
+        /**
+         * Chunks that have been sent to the marker, by their Morton codes.
+         */
+        private final Map<Long, ChunkLArray> chunks = new ConcurrentHashMap<>();
+
+        /**
+         * Chunks that are waiting to be generated, closest first.
+         */
+        private final GenerationScheduler scheduler;
+
+        /**
+         * Set when marker is removed. Guarded by this state.
+         */
+        private boolean removed;
+
+        private SectorState(LoadMarker marker, Sector hard, Sector soft) {
+            this.hard = hard;
+            this.soft = soft;
+            this.scheduler = new GenerationScheduler(marker, soft.size);
+        }
+    }
+
     WorldGenerator(int nodeLength, int maxOctreeSize, OffheapOctree octree, ChunkGenerator generator) {
+        this(nodeLength, maxOctreeSize, octree, generator, null);
+    }
+
+    WorldGenerator(int nodeLength, int maxOctreeSize, OffheapOctree octree, ChunkGenerator generator,
+                   ForkJoinPool generationPool) {
         this.generator = generator;
         this.octree = octree;
         this.nodeLength = nodeLength;
         this.maxOctreeSize = maxOctreeSize;
+        this.generationPool = generationPool;
+        this.sectors = new ConcurrentHashMap<>();
+        this.inFlight = new ConcurrentHashMap<>();
+        this.markerIndex = new MarkerIndex();
+        this.loadedChunks = new LoadedChunks(generator instanceof CachingChunkGenerator
+                ? (CachingChunkGenerator) generator : null);
+    }
+
+    /**
+     * Generates chunks from scheduler of a marker until nothing is pending.
+     * Root task forks given amount of workers that drain the same scheduler.
+     */
+    private class DrainTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final LoadMarker marker;
+        private final SectorState state;
+        private final int workers;
+
+        private DrainTask(LoadMarker marker, SectorState state, int workers) {
+            this.marker = marker;
+            this.state = state;
+            this.workers = workers;
+        }
+
+        @Override
+        protected void compute() {
+            if (workers > 1) {
+                List<DrainTask> tasks = new ArrayList<>(workers);
+                for (int i = 0; i < workers; i++) {
+                    tasks.add(new DrainTask(marker, state, 1));
+                }
+                invokeAll(tasks);
+            } else {
+                drain(marker, state);
+            }
+        }
     }
 
     //Initial generation
@@ -40,14 +161,6 @@ class WorldGenerator {
 
         int layers = CoreUtils.calculateOctreeLayers(nodeLength);
 
-        int roundRadius = (int) (2 * marker.getHardRadius()) - 1;
-
-        if (roundRadius > ServerWorld.MAX_LOAD_DISTANCE / 16) {
-            roundRadius = ServerWorld.MAX_LOAD_DISTANCE / 16;
-        }
-
-        int chunkAmount = (int) Math.pow(roundRadius, 3);
-
         if (nodeLength > ServerWorld.MAX_LOAD_DISTANCE) {
             for (int l = 0; l < layers - MAX_OCTANT_LAYERS; l++) {
                 int octant = marker.getOctant(l);
@@ -55,32 +168,226 @@ class WorldGenerator {
             }
         }
 
-        for (int i = 0; i < chunkAmount; i++) {
-            int xOffset = i % roundRadius;
-            int yOffset = (i / roundRadius) % roundRadius;
-            int zOffset = i / (roundRadius * roundRadius);
+        Sector hard = hardSector(marker);
+        SectorState state = new SectorState(marker, hard, softSector(marker, hard));
+        SectorState previous = sectors.put(marker, state);
+        if (previous != null) { // Seeking again, start from scratch
+            release(marker, previous);
+        }
+        markerIndex.update(marker, state.soft);
 
-            int xWorld = (int) ((xOffset * DataConstants.CHUNK_SCALE)
-                    + (marker.getPosX() / DataConstants.CHUNK_SCALE) * DataConstants.CHUNK_SCALE);
-            int yWorld = (int) ((yOffset * DataConstants.CHUNK_SCALE)
-                    + (marker.getPosY() / DataConstants.CHUNK_SCALE) * DataConstants.CHUNK_SCALE);
-            int zWorld = (int) ((zOffset * DataConstants.CHUNK_SCALE)
-                    + (marker.getPosZ() / DataConstants.CHUNK_SCALE) * DataConstants.CHUNK_SCALE);
+        schedule(hard, null, state);
+        generate(marker, state);
 
-            long lolong = Morton3D.encode(xOffset, yOffset, zOffset);
+       // createOctree(octree.getCursorNode());
+        marker.sendOctree(octree);
+    }
 
-            ChunkLArray chunk = loadArea(xWorld, yWorld, zWorld, marker);
+    //Procedural generation
 
-          //  OctreeLeaf leafNode = new OctreeLeaf(xWorld, yWorld, zWorld, layers, lolong, chunk);
+    /**
+     * Moves sector of given load marker to where the marker currently is.
+     * Only chunks that entered hard radius are generated, and only chunks
+     * that left soft radius are unloaded. Markers that have not had initial
+     * generation, or that have been removed, are ignored.
+     *
+     * @param marker Load marker.
+     * @param soft   If soft radius should be used. Otherwise, chunks are
+     *               unloaded as soon as they leave hard radius.
+     * @return If sector of the marker was updated.
+     */
+    boolean updateSector(LoadMarker marker, boolean soft) {
+        SectorState state = sectors.get(marker);
+        if (state == null) {
+            return false;
+        }
 
+        synchronized (state) {
+            if (state.removed) { // Removed while update was queued
+                return false;
+            }
+            Sector oldHard = state.hard;
+            Sector oldSoft = state.soft;
+            Sector hard = hardSector(marker);
+            Sector keep = soft ? softSector(marker, hard) : hard;
+            if (hard.equals(oldHard) && keep.equals(oldSoft)) {
+                return true; // Still in same chunk, nothing to do
+            }
+            state.hard = hard;
+            state.soft = keep;
+            state.scheduler.setSoftSize(keep.size);
+            markerIndex.update(marker, keep);
+
+            // Unload what is no longer needed first, then queue new chunks
+            oldSoft.forEach(keep, (x, y, z) -> unloadArea(x, y, z, marker, state));
+            schedule(hard, oldHard, state); // Rest of it was queued before
         }
 
-       // createOctree(octree.getCursorNode());
-        marker.sendOctree(octree);
+        // Pending work that left soft radius is cancelled by the scheduler
+        generate(marker, state);
+        return true;
     }
 
-    //Procedural generation
-    void updateSector(float x, float z, float range, WorldLoadListener listener, LoadMarker trigger) {
+    /**
+     * Unloads all chunks of given load marker and forgets its sector.
+     *
+     * @param marker Load marker.
+     */
+    void removeSector(LoadMarker marker) {
+        SectorState state = sectors.remove(marker);
+        if (state != null) {
+            synchronized (state) { // Updates in progress see this
+                state.removed = true;
+                markerIndex.remove(marker);
+                release(marker, state);
+            }
+        }
+    }
+
+    /**
+     * Gets load markers which keep given chunk loaded.
+     *
+     * @param x Chunk X coordinate.
+     * @param y Chunk Y coordinate.
+     * @param z Chunk Z coordinate.
+     * @return Markers whose soft sectors contain the chunk.
+     */
+    List<LoadMarker> getMarkersCovering(int x, int y, int z) {
+        return markerIndex.getMarkersCovering(x, y, z);
+    }
+
+    /**
+     * Visits chunks that only given marker keeps loaded.
+     *
+     * @param marker  Load marker.
+     * @param visitor Visitor for chunk coordinates.
+     */
+    void forEachExclusive(LoadMarker marker, Sector.Visitor visitor) {
+        markerIndex.forEachExclusive(marker, visitor);
+    }
+
+    /**
+     * Sets listener which is notified when a chunk is no longer loaded by
+     * any marker, so that its memory can be reclaimed.
+     *
+     * @param listener Listener for released chunks.
+     */
+    void setReleaseListener(WorldLoadListener listener) {
+        loadedChunks.setReleaseListener(listener);
+    }
+
+    /**
+     * Cancels pending work of a sector and unloads all of its chunks.
+     *
+     * @param marker Load marker.
+     * @param state  State that is no longer used.
+     */
+    private void release(LoadMarker marker, SectorState state) {
+        state.scheduler.cancelAll();
+        Sector soft = state.soft;
+        state.soft = Sector.EMPTY; // Chunks still being generated get unloaded
+        soft.forEach(null, (x, y, z) -> unloadArea(x, y, z, marker, state));
+    }
+
+    /**
+     * Computes sector for hard radius of given marker.
+     *
+     * @param marker Load marker.
+     * @return Sector where chunks should be generated.
+     */
+    private Sector hardSector(LoadMarker marker) {
+        int size = (int) (2 * marker.getHardRadius()) - 1;
+
+        if (size > ServerWorld.MAX_LOAD_DISTANCE / DataConstants.CHUNK_SCALE) {
+            size = ServerWorld.MAX_LOAD_DISTANCE / DataConstants.CHUNK_SCALE;
+        }
+
+        return Sector.around(marker.getPosX(), marker.getPosY(), marker.getPosZ(), size);
+    }
+
+    /**
+     * Computes sector for soft radius of given marker. It is never smaller
+     * than the hard sector.
+     *
+     * @param marker Load marker.
+     * @param hard   Hard sector of marker.
+     * @return Sector outside of which chunks should be unloaded.
+     */
+    private Sector softSector(LoadMarker marker, Sector hard) {
+        int size = Math.max(hard.size, (int) (2 * marker.getSoftRadius()) - 1);
+        return Sector.around(marker.getPosX(), marker.getPosY(), marker.getPosZ(), size);
+    }
+
+    /**
+     * Queues chunks of a sector that are not yet loaded for generation.
+     * Chunks that are already pending or being generated are skipped.
+     *
+     * @param sector  Sector to queue chunks from.
+     * @param exclude Sector whose chunks are not queued, or null.
+     * @param state   State of marker that chunks are queued for.
+     */
+    private void schedule(Sector sector, Sector exclude, SectorState state) {
+        sector.forEach(exclude, (x, y, z) -> {
+            if (ChunkPosition.isValid(x, y, z) && !state.chunks.containsKey(Morton3D.encode(x, y, z))) {
+                state.scheduler.submit(new ChunkPosition(x, y, z));
+            }
+        });
+    }
+
+    /**
+     * Generates pending chunks of given marker, in parallel if possible, and
+     * returns once nothing is pending.
+     *
+     * @param marker Load marker.
+     * @param state  State of the marker.
+     */
+    private void generate(LoadMarker marker, SectorState state) {
+        int pending = state.scheduler.getPendingCount();
+        if (generationPool != null && pending > 1) {
+            generationPool.invoke(new DrainTask(marker, state, Math.min(generationPool.getParallelism(), pending)));
+        } else {
+            drain(marker, state);
+        }
+    }
+
+    /**
+     * Generates chunks from scheduler of given marker until nothing is
+     * pending.
+     *
+     * @param marker Load marker.
+     * @param state  State of the marker.
+     */
+    private void drain(LoadMarker marker, SectorState state) {
+        boolean batching = generator.supportsBatching();
+        ChunkPosition first;
+        while ((first = state.scheduler.poll()) != null) {
+            // Closest chunk, and possibly rest of its column
+            List<ChunkPosition> batch = batching ? state.scheduler.pollColumn(first, MAX_COLUMN_BATCH)
+                    : List.of(first);
+            try {
+                ChunkLArray[] chunks = loadArea(batch);
+                for (int i = 0; i < chunks.length; i++) {
+                    ChunkPosition pos = batch.get(i);
+                    if (chunks[i] == null) {
+                        continue;
+                    }
+
+                    // We hold a reference; keep it only if marker still wants the chunk
+                    synchronized (state) { // Sector can't move meanwhile
+                        if (state.soft.contains(pos.x, pos.y, pos.z)
+                                && state.chunks.putIfAbsent(pos.key, chunks[i]) == null) {
+                            marker.sendChunk(chunks[i]);
+                        } else { // Marker moved away or already had it
+                            loadedChunks.release(pos.key);
+                        }
+                    }
+                }
+            } finally {
+                for (ChunkPosition pos : batch) {
+                    state.scheduler.done(pos);
+                }
+            }
+        }
     }
 
     private void createOctree(int mainNode) {
@@ -235,23 +542,128 @@ class WorldGenerator {
     }
 
     //Unloads chunks
-  /*  public void unloadArea(float x, float y, float z, WorldLoadListener listener, OffheapLoadMarker trigger){
-        ChunkLoader chunkLoader = new ChunkLoader(listener);
-        ChunkLArray chunk = chunkLoader.getChunk(x, y, z, trigger);
-        if(chunk != null) {
-            //genManager.remove(chunk);
-            listener.chunkUnloaded(chunk);
+    private void unloadArea(int x, int y, int z, LoadMarker marker, SectorState state) {
+        if (!ChunkPosition.isValid(x, y, z)) {
+            return;
         }
-    }*/
+
+        long key = Morton3D.encode(x, y, z);
+        ChunkLArray chunk = state.chunks.remove(key);
+        if (chunk != null) {
+            marker.chunkUnloaded(chunk);
+            loadedChunks.release(key);
+        }
+    }
 
     //Loads chunks
-    private ChunkLArray loadArea(float x, float y, float z, LoadMarker marker) {
-        if (x >= 0 && z >= 0) {
-            ChunkLArray chunk = generator.getChunk(x, y, z);
-            marker.sendChunk(chunk);
-            return chunk;
+    private ChunkLArray[] loadArea(List<ChunkPosition> positions) {
+        return generateShared(positions);
+    }
+
+    /**
+     * Generates chunks at given positions. Chunks that other markers have
+     * loaded are reused. Chunks that some other marker is already generating
+     * are not generated again; instead, we wait for the other generation to
+     * complete and return the same chunks. Positions must either be a single
+     * chunk or share a column. A reference to every returned chunk is
+     * acquired for the caller.
+     *
+     * @param positions Chunk positions.
+     * @return Generated chunks, in same order as positions.
+     */
+    private ChunkLArray[] generateShared(List<ChunkPosition> positions) {
+        int count = positions.size();
+        ChunkLArray[] chunks = new ChunkLArray[count];
+        @SuppressWarnings("unchecked")
+        CompletableFuture<ChunkLArray>[] futures = new CompletableFuture[count];
+
+        // Claim chunks that no one else is generating
+        List<ChunkPosition> owned = new ArrayList<>(count);
+        List<CompletableFuture<ChunkLArray>> ownedFutures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ChunkPosition pos = positions.get(i);
+            ChunkLArray loaded = loadedChunks.acquireIfPresent(pos.key);
+            if (loaded != null) {
+                chunks[i] = loaded;
+                continue;
+            }
+
+            CompletableFuture<ChunkLArray> future = new CompletableFuture<>();
+            CompletableFuture<ChunkLArray> existing = inFlight.putIfAbsent(pos.key, future);
+            if (existing == null) {
+                owned.add(pos);
+                ownedFutures.add(future);
+                futures[i] = future;
+            } else {
+                futures[i] = existing;
+            }
         }
 
-        return null;
+        if (!owned.isEmpty()) {
+            try {
+                ChunkLArray[] generated;
+                if (owned.size() == 1) {
+                    ChunkPosition pos = owned.get(0);
+                    generated = new ChunkLArray[]{generator.getChunk(pos.worldX(), pos.worldY(), pos.worldZ())};
+                } else {
+                    float[] posYs = new float[owned.size()];
+                    for (int i = 0; i < posYs.length; i++) {
+                        posYs[i] = owned.get(i).worldY();
+                    }
+                    ChunkPosition pos = owned.get(0);
+                    generated = generator.getColumn(pos.worldX(), pos.worldZ(), posYs);
+                }
+                for (int i = 0; i < generated.length; i++) {
+                    ChunkLArray chunk = generated[i];
+                    if (chunk != null) {
+                        // Register before leaving in-flight, so that nobody generates it again
+                        ChunkLArray registered = loadedChunks.acquire(owned.get(i).key, chunk);
+                        if (registered != chunk) { // Someone else got there first
+                            loadedChunks.discard(chunk);
+                            chunk = registered;
+                        }
+                    }
+                    ownedFutures.get(i).complete(chunk);
+                }
+            } catch (RuntimeException | Error e) {
+                for (CompletableFuture<ChunkLArray> future : ownedFutures) { // Waiters fail too
+                    future.completeExceptionally(e);
+                }
+                throw e;
+            } finally {
+                for (int i = 0; i < owned.size(); i++) {
+                    inFlight.remove(owned.get(i).key, ownedFutures.get(i));
+                }
+            }
+        }
+
+        // Our own futures are complete by now; others may still be pending
+        List<ChunkPosition> retry = new ArrayList<>();
+        List<Integer> retryIndices = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (futures[i] == null) {
+                continue; // Already loaded and acquired
+            }
+            ChunkLArray chunk = futures[i].join();
+            if (chunk == null || ownedFutures.contains(futures[i])) {
+                chunks[i] = chunk; // Owned chunks were acquired when registered
+                continue;
+            }
+
+            // Generated by someone else; get our own reference
+            chunks[i] = loadedChunks.acquireIfPresent(positions.get(i).key);
+            if (chunks[i] == null) { // Released already, have to generate again
+                retry.add(positions.get(i));
+                retryIndices.add(i);
+            }
+        }
+
+        if (!retry.isEmpty()) {
+            ChunkLArray[] retried = generateShared(retry);
+            for (int i = 0; i < retried.length; i++) {
+                chunks[retryIndices.get(i)] = retried[i];
+            }
+        }
+        return chunks;
     }
 }
@@ -0,0 +1,164 @@
+package com.ritualsoftheold.terra.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.openhft.chronicle.core.Memory;
+import net.openhft.chronicle.core.OS;
+
+/**
+ * Hands out memory from large regions with a bump pointer. Individual
+ * allocations are never freed; instead, all regions are freed at once with
+ * {@link #release()}. This suits data which is all discarded together.
+ * 
+ * <p>One region is reserved up front. When it runs out, overflow regions
+ * of same size are reserved as needed. Allocating is lock-free except when
+ * a new region must be reserved. Memory use is reported per region, not
+ * per allocation.
+ *
+ */
+public class ArenaAllocator implements MemoryAllocator {
+    
+    private static final Memory mem = OS.memory();
+    
+    /**
+     * All allocations are aligned to this.
+     */
+    private static final int ALIGNMENT = 8;
+    
+    /**
+     * A continuous memory region.
+     *
+     */
+    private static class Region {
+        
+        @Pointer
+        private final long start;
+        
+        private final long size;
+        
+        /**
+         * Offset of first free byte. May exceed size when region is full.
+         */
+        private final AtomicLong next;
+        
+        private Region(long size) {
+            this.start = mem.allocate(size);
+            this.size = size;
+            this.next = new AtomicLong();
+        }
+    }
+    
+    /**
+     * Size of regions that this reserves.
+     */
+    private final long regionSize;
+    
+    /**
+     * Region which allocations are currently bumped from.
+     */
+    private volatile Region current;
+    
+    /**
+     * All regions, including current.
+     */
+    private final Queue<Region> regions;
+    
+    /**
+     * Notified when regions are reserved or released, or null.
+     */
+    private final MemoryUseListener listener;
+    
+    /**
+     * Creates a new arena and reserves its first region.
+     * @param regionSize Size of each region in bytes.
+     */
+    public ArenaAllocator(long regionSize) {
+        this(regionSize, null);
+    }
+    
+    /**
+     * Creates a new arena which reports its regions, and reserves its
+     * first region.
+     * @param regionSize Size of each region in bytes.
+     * @param listener Memory use listener. May be null.
+     */
+    public ArenaAllocator(long regionSize, MemoryUseListener listener) {
+        if (regionSize < ALIGNMENT) {
+            throw new IllegalArgumentException("region too small");
+        }
+        this.regionSize = regionSize;
+        this.listener = listener;
+        this.regions = new ConcurrentLinkedQueue<>();
+        this.current = reserve(regionSize);
+    }
+    
+    @Override
+    public @Pointer long allocate(long length) {
+        long aligned = (length + ALIGNMENT - 1) & -ALIGNMENT;
+        if (aligned > regionSize) { // Would never fit, give it a region of its own
+            return reserve(aligned).start;
+        }
+        
+        while (true) {
+            Region region = current;
+            long offset = region.next.getAndAdd(aligned);
+            if (offset + aligned <= region.size) {
+                return region.start + offset;
+            }
+            
+            // Region is full, make sure someone reserves an overflow region
+            synchronized (this) {
+                if (current == region) {
+                    current = reserve(regionSize);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Does nothing; memory is freed when whole arena is released.
+     */
+    @Override
+    public void free(@Pointer long addr, long length) {
+        // Freed in release()
+    }
+    
+    /**
+     * Frees all regions of this arena. Memory that this allocated must not
+     * be used afterwards, and this allocator must not be used again.
+     */
+    public void release() {
+        long freed = 0;
+        Region region;
+        while ((region = regions.poll()) != null) {
+            mem.freeMemory(region.start, region.size);
+            freed += region.size;
+        }
+        if (listener != null && freed > 0) {
+            listener.onFree(freed);
+        }
+    }
+    
+    /**
+     * Gets how much memory has been reserved for regions.
+     * @return Reserved memory in bytes.
+     */
+    public long getReservedMemory() {
+        long reserved = 0;
+        for (Region region : regions) {
+            reserved += region.size;
+        }
+        return reserved;
+    }
+    
+    private Region reserve(long size) {
+        Region region = new Region(size);
+        regions.add(region);
+        if (listener != null) {
+            listener.onAllocate(size);
+        }
+        return region;
+    }
+}
@@ -0,0 +1,95 @@
+package com.ritualsoftheold.terra.server;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.ritualsoftheold.terra.server.chunk.ChunkBuffer;
+import com.ritualsoftheold.terra.server.chunk.ChunkStorage;
+
+/**
+ * CLOCK (second chance) eviction. A hand sweeps over buffers; buffers that
+ * have been needed since hand last passed them get a second chance, others
+ * are evicted. Access stamps of buffers serve as reference bits, so nothing
+ * extra needs to be written when buffers are used.
+ *
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+    
+    /**
+     * Clock of one chunk storage.
+     *
+     */
+    private static class Clock {
+        
+        /**
+         * Position of the hand.
+         */
+        private int hand;
+        
+        /**
+         * When hand last passed each buffer.
+         */
+        private final long[] passed;
+        
+        Clock(int size) {
+            this.passed = new long[size];
+        }
+    }
+    
+    /**
+     * Clocks of all storages this has been used with.
+     */
+    private final Map<ChunkStorage, Clock> clocks = new WeakHashMap<>();
+    
+    @Override
+    public PrimitiveIterator.OfInt candidates(ChunkStorage storage) {
+        AtomicReferenceArray<ChunkBuffer> buffers = storage.getAllBuffers();
+        Clock clock = clocks.computeIfAbsent(storage, s -> new Clock(buffers.length()));
+        long[] passed = clock.passed;
+        
+        return new PrimitiveIterator.OfInt() {
+            
+            /**
+             * How many steps hand may still take. Two rounds are enough for
+             * every buffer to lose its second chance.
+             */
+            private int steps = buffers.length() * 2;
+            
+            private int next = -1;
+            
+            @Override
+            public boolean hasNext() {
+                while (next == -1 && steps > 0) {
+                    steps--;
+                    int index = clock.hand;
+                    clock.hand = (index + 1) % buffers.length();
+                    
+                    ChunkBuffer buf = buffers.get(index);
+                    if (buf == null || !buf.isReady()) {
+                        continue; // Nothing to evict
+                    }
+                    long lastNeeded = buf.getLastNeeded();
+                    if (lastNeeded > passed[index]) { // Second chance
+                        passed[index] = lastNeeded;
+                    } else {
+                        next = index;
+                    }
+                }
+                return next != -1;
+            }
+            
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int index = next;
+                next = -1;
+                return index;
+            }
+        };
+    }
+}
@@ -0,0 +1,33 @@
+package com.ritualsoftheold.terra.server;
+
+import java.util.PrimitiveIterator;
+
+import com.ritualsoftheold.terra.server.chunk.ChunkStorage;
+
+/**
+ * Decides in which order memory manager unloads chunk buffers. Policies
+ * see when buffers were last needed through
+ * {@link com.ritualsoftheold.terra.server.chunk.ChunkBuffer#getLastNeeded()}.
+ *
+ */
+public interface EvictionPolicy {
+    
+    /**
+     * Gives indices of loaded buffers in order they should be unloaded.
+     * Memory manager skips buffers that are in use, and stops once it has
+     * freed enough memory. Only called from memory manager thread.
+     * @param storage Chunk storage.
+     * @return Buffer indices, best candidate first.
+     */
+    PrimitiveIterator.OfInt candidates(ChunkStorage storage);
+    
+    /**
+     * Checks right before unloading that a candidate may still be unloaded.
+     * @param storage Chunk storage.
+     * @param index Buffer index.
+     * @return If the buffer may be unloaded.
+     */
+    default boolean canEvict(ChunkStorage storage, int index) {
+        return true;
+    }
+}
@@ -0,0 +1,34 @@
+package com.ritualsoftheold.terra.server;
+
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.ritualsoftheold.terra.server.chunk.ChunkBuffer;
+import com.ritualsoftheold.terra.server.chunk.ChunkStorage;
+
+/**
+ * Least recently used eviction. Loaded buffers are ordered by when they
+ * were last needed when eviction begins.
+ *
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+    
+    @Override
+    public PrimitiveIterator.OfInt candidates(ChunkStorage storage) {
+        AtomicReferenceArray<ChunkBuffer> buffers = storage.getAllBuffers();
+        
+        // Buffer indices fit in 16 bits (see chunk ids), stamps to the rest
+        long[] order = new long[buffers.length()];
+        int count = 0;
+        for (int i = 0; i < buffers.length(); i++) {
+            ChunkBuffer buf = buffers.get(i);
+            if (buf != null && buf.isReady()) {
+                order[count++] = buf.getLastNeeded() << 16 | i;
+            }
+        }
+        
+        Arrays.sort(order, 0, count); // Oldest first
+        return Arrays.stream(order, 0, count).mapToInt(key -> (int) (key & 0xffff)).iterator();
+    }
+}
@@ -0,0 +1,96 @@
+package com.ritualsoftheold.terra.server;
+
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+import com.ritualsoftheold.terra.server.chunk.ChunkBuffer;
+import com.ritualsoftheold.terra.server.chunk.ChunkStorage;
+
+/**
+ * Evicts buffers farthest from all load markers first; buffers equally far
+ * are evicted least recently used first. Buffers inside hard radius of any
+ * marker are never evicted.
+ * 
+ * <p>Distances are known only for buffers whose chunk positions have been
+ * recorded, see {@link ChunkStorage#newChunk(float, float, float)}.
+ * Until then, buffers are not pinned, and they are evicted least recently
+ * used first.
+ *
+ */
+public class MarkerEvictionPolicy implements EvictionPolicy {
+    
+    private final MarkerPositions positions;
+    
+    public MarkerEvictionPolicy(MarkerPositions positions) {
+        this.positions = positions;
+    }
+    
+    @Override
+    public PrimitiveIterator.OfInt candidates(ChunkStorage storage) {
+        AtomicReferenceArray<ChunkBuffer> buffers = storage.getAllBuffers();
+        double[] distances = new double[buffers.length()];
+        
+        // Markers rarely move while we do this, so try without locking first
+        StampedLock lock = positions.getLock();
+        long stamp = lock.tryOptimisticRead();
+        score(storage, buffers, distances);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                score(storage, buffers, distances);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        
+        int count = 0;
+        Integer[] order = new Integer[buffers.length()];
+        long[] lastNeeded = new long[buffers.length()]; // Stamps change, comparator must not see that
+        for (int i = 0; i < buffers.length(); i++) {
+            if (distances[i] >= 0) { // Not pinned or unloaded
+                order[count++] = i;
+                ChunkBuffer buf = buffers.get(i);
+                lastNeeded[i] = buf != null ? buf.getLastNeeded() : 0;
+            }
+        }
+        
+        Arrays.sort(order, 0, count, (a, b) -> {
+            int cmp = Double.compare(distances[b], distances[a]); // Farthest first
+            if (cmp != 0) {
+                return cmp;
+            }
+            return Long.compare(lastNeeded[a], lastNeeded[b]);
+        });
+        return Arrays.stream(order, 0, count).mapToInt(Integer::intValue).iterator();
+    }
+    
+    /**
+     * Scores all loaded buffers. Unloaded and pinned buffers get negative
+     * scores.
+     */
+    private void score(ChunkStorage storage, AtomicReferenceArray<ChunkBuffer> buffers, double[] distances) {
+        for (int i = 0; i < buffers.length(); i++) {
+            ChunkBuffer buf = buffers.get(i);
+            distances[i] = buf != null && buf.isReady() ? positions.getDistance(storage, i) : -1;
+        }
+    }
+    
+    @Override
+    public boolean canEvict(ChunkStorage storage, int index) {
+        // Marker may have moved since candidates were ordered
+        StampedLock lock = positions.getLock();
+        long stamp = lock.tryOptimisticRead();
+        double distance = positions.getDistance(storage, index);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                distance = positions.getDistance(storage, index);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return distance >= 0;
+    }
+}
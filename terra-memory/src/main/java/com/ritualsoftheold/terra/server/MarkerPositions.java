@@ -0,0 +1,240 @@
+package com.ritualsoftheold.terra.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+import com.ritualsoftheold.terra.server.chunk.ChunkStorage;
+
+/**
+ * Tracks where load markers are and where chunks of each chunk buffer are,
+ * so that eviction can prefer buffers far from all markers. Each chunk
+ * storage has its own markers and buffers; markers of one storage never
+ * pin buffers of another. Marker updates
+ * and chunk position records hold write lock of memory manager's load
+ * marker lock; eviction reads optimistically.
+ * 
+ * <p>Chunk storages that have been given these positions record chunks
+ * that are created with {@link ChunkStorage#newChunk(float, float, float)};
+ * others must be recorded with
+ * {@link #recordChunk(ChunkStorage, int, float, float, float)}. Markers do not pin buffers
+ * whose chunks have not been recorded.
+ *
+ */
+public class MarkerPositions {
+    
+    /**
+     * Floats per marker: x, y, z, hard radius.
+     */
+    private static final int MARKER_SIZE = 4;
+    
+    /**
+     * Positions of markers and buffers of one chunk storage.
+     *
+     */
+    private static class StoragePositions {
+        
+        /**
+         * Bounding boxes of chunk centers of each buffer: min x, y, z, then
+         * max x, y, z. Empty boxes have min above max.
+         */
+        private final float[] bounds;
+        
+        /**
+         * Marker data. Replaced, not modified, when markers change.
+         */
+        private volatile float[] markers;
+        
+        /**
+         * Slots of markers in marker data. Guarded by write lock.
+         */
+        private final Map<Object, Integer> markerSlots;
+        
+        StoragePositions(int maxBuffers) {
+            this.bounds = new float[maxBuffers * 6];
+            for (int i = 0; i < maxBuffers; i++) {
+                Arrays.fill(bounds, i * 6, i * 6 + 3, Float.POSITIVE_INFINITY);
+                Arrays.fill(bounds, i * 6 + 3, i * 6 + 6, Float.NEGATIVE_INFINITY);
+            }
+            this.markers = new float[0];
+            this.markerSlots = new HashMap<>();
+        }
+    }
+    
+    private final StampedLock lock;
+    
+    /**
+     * Positions by chunk storages.
+     */
+    private final Map<ChunkStorage, StoragePositions> storages;
+    
+    /**
+     * Creates marker position tracking.
+     * @param manager Memory manager, whose load marker lock is used.
+     */
+    public MarkerPositions(MemoryManager manager) {
+        this.lock = manager.getLoadMarkerLock();
+        this.storages = new ConcurrentHashMap<>();
+    }
+    
+    private StoragePositions positions(ChunkStorage storage) {
+        return storages.computeIfAbsent(storage, s -> new StoragePositions(s.getAllBuffers().length()));
+    }
+    
+    /**
+     * Records where a chunk is.
+     * @param storage Chunk storage of the chunk.
+     * @param chunkId Full chunk id.
+     * @param x Chunk center X.
+     * @param y Chunk center Y.
+     * @param z Chunk center Z.
+     */
+    public void recordChunk(ChunkStorage storage, int chunkId, float x, float y, float z) {
+        StoragePositions positions = positions(storage);
+        float[] bounds = positions.bounds;
+        int i = (chunkId >>> 16) * 6;
+        long stamp = lock.writeLock();
+        try {
+            bounds[i] = Math.min(bounds[i], x);
+            bounds[i + 1] = Math.min(bounds[i + 1], y);
+            bounds[i + 2] = Math.min(bounds[i + 2], z);
+            bounds[i + 3] = Math.max(bounds[i + 3], x);
+            bounds[i + 4] = Math.max(bounds[i + 4], y);
+            bounds[i + 5] = Math.max(bounds[i + 5], z);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Adds or moves a load marker.
+     * @param storage Chunk storage whose chunks the marker keeps loaded.
+     * @param marker Marker.
+     * @param x Marker X.
+     * @param y Marker Y.
+     * @param z Marker Z.
+     * @param hardRadius Chunks within this radius are never unloaded. In
+     * world units, like the position.
+     */
+    public void updateMarker(ChunkStorage storage, Object marker, float x, float y, float z, float hardRadius) {
+        StoragePositions positions = positions(storage);
+        long stamp = lock.writeLock();
+        try {
+            Integer slot = positions.markerSlots.get(marker);
+            float[] data;
+            if (slot == null) {
+                slot = positions.markers.length / MARKER_SIZE;
+                data = Arrays.copyOf(positions.markers, positions.markers.length + MARKER_SIZE);
+                positions.markerSlots.put(marker, slot);
+            } else {
+                data = positions.markers.clone();
+            }
+            int i = slot * MARKER_SIZE;
+            data[i] = x;
+            data[i + 1] = y;
+            data[i + 2] = z;
+            data[i + 3] = hardRadius;
+            positions.markers = data;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Removes a load marker.
+     * @param storage Chunk storage whose chunks the marker kept loaded.
+     * @param marker Marker.
+     */
+    public void removeMarker(ChunkStorage storage, Object marker) {
+        StoragePositions positions = storages.get(storage);
+        if (positions == null) {
+            return;
+        }
+        long stamp = lock.writeLock();
+        try {
+            Integer slot = positions.markerSlots.remove(marker);
+            if (slot == null) {
+                return;
+            }
+            
+            // Move last marker to the freed slot
+            float[] old = positions.markers;
+            int last = old.length / MARKER_SIZE - 1;
+            float[] data = Arrays.copyOf(old, old.length - MARKER_SIZE);
+            if (slot != last) {
+                System.arraycopy(old, last * MARKER_SIZE, data, slot * MARKER_SIZE, MARKER_SIZE);
+                for (Map.Entry<Object, Integer> entry : positions.markerSlots.entrySet()) {
+                    if (entry.getValue() == last) {
+                        entry.setValue(slot);
+                        break;
+                    }
+                }
+            }
+            positions.markers = data;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Forgets all markers and chunk positions of a chunk storage, e.g. when
+     * it is no longer managed.
+     * @param storage Chunk storage.
+     */
+    public void removeStorage(ChunkStorage storage) {
+        storages.remove(storage);
+    }
+    
+    StampedLock getLock() {
+        return lock;
+    }
+    
+    /**
+     * Gets squared distance from chunks of a buffer to closest marker of
+     * its storage. May be inconsistent unless called under load marker
+     * lock, or validated afterwards.
+     * @param storage Chunk storage.
+     * @param buffer Buffer index.
+     * @return Squared distance, negative if buffer is inside hard radius of
+     * a marker, or infinity if distance is not known.
+     */
+    double getDistance(ChunkStorage storage, int buffer) {
+        StoragePositions positions = storages.get(storage);
+        if (positions == null) {
+            return Double.POSITIVE_INFINITY; // Nothing recorded for this storage
+        }
+        float[] bounds = positions.bounds;
+        float[] data = positions.markers;
+        int b = buffer * 6;
+        if (bounds[b] > bounds[b + 3]) {
+            return Double.POSITIVE_INFINITY; // No chunks recorded
+        }
+        
+        double closest = Double.POSITIVE_INFINITY;
+        for (int i = 0; i + MARKER_SIZE <= data.length; i += MARKER_SIZE) {
+            // Squared distance from marker to bounding box
+            double dx = axisDistance(data[i], bounds[b], bounds[b + 3]);
+            double dy = axisDistance(data[i + 1], bounds[b + 1], bounds[b + 4]);
+            double dz = axisDistance(data[i + 2], bounds[b + 2], bounds[b + 5]);
+            double dist = dx * dx + dy * dy + dz * dz;
+            
+            float hard = data[i + 3];
+            if (dist <= hard * hard) {
+                return -1; // Pinned
+            }
+            closest = Math.min(closest, dist);
+        }
+        return closest;
+    }
+    
+    private static double axisDistance(float pos, float min, float max) {
+        if (pos < min) {
+            return min - pos;
+        } else if (pos > max) {
+            return pos - max;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,126 @@
+package com.ritualsoftheold.terra.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts used memory without making all threads contend on one counter.
+ * Each stripe holds credit: memory that has already been counted globally,
+ * but not yet used by threads of that stripe. Allocations only touch their
+ * stripe until it runs out of credit; only then global counter is updated
+ * and compared against thresholds.
+ * 
+ * <p>Global counter is always at least real memory usage, so thresholds
+ * are crossed early rather than late, by at most stripe count times
+ * grant size.
+ *
+ */
+class MemoryCounter {
+    
+    /**
+     * Longs between stripes, so that they are on different cache lines.
+     */
+    private static final int PADDING = 8;
+    
+    /**
+     * Called when global counter grows above a threshold.
+     *
+     */
+    @FunctionalInterface
+    interface ThresholdListener {
+        
+        void thresholdCrossed(long reserved);
+    }
+    
+    /**
+     * Credit of each stripe.
+     */
+    private final AtomicLongArray stripes;
+    
+    private final int stripeMask;
+    
+    /**
+     * How much credit stripes take at once.
+     */
+    private final long grant;
+    
+    /**
+     * Memory used or given to stripes as credit.
+     */
+    private final AtomicLong reserved;
+    
+    /**
+     * When reserved memory goes above this, listener is called.
+     */
+    private final long threshold;
+    
+    private final ThresholdListener listener;
+    
+    /**
+     * Creates a memory counter.
+     * @param stripeCount Stripe count, rounded up to power of two.
+     * @param grant How much credit stripes take at once.
+     * @param threshold When reserved memory goes above this, listener is
+     * called.
+     * @param listener Threshold listener.
+     */
+    MemoryCounter(int stripeCount, long grant, long threshold, ThresholdListener listener) {
+        int count = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.stripes = new AtomicLongArray(count * PADDING);
+        this.stripeMask = count - 1;
+        this.grant = grant;
+        this.reserved = new AtomicLong();
+        this.threshold = threshold;
+        this.listener = listener;
+    }
+    
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) & stripeMask) * PADDING;
+    }
+    
+    void add(long amount) {
+        int stripe = stripe();
+        long left = stripes.addAndGet(stripe, -amount);
+        if (left < 0) { // Out of credit, take more from global counter
+            long need = grant - left;
+            long total = reserved.addAndGet(need);
+            stripes.addAndGet(stripe, need);
+            if (total > threshold) {
+                listener.thresholdCrossed(total);
+            }
+        }
+    }
+    
+    void subtract(long amount) {
+        int stripe = stripe();
+        long left = stripes.addAndGet(stripe, amount);
+        if (left > 2 * grant) { // Too much credit, give back to global counter
+            long excess = left - grant;
+            if (stripes.compareAndSet(stripe, left, grant)) {
+                reserved.addAndGet(-excess);
+            }
+        }
+    }
+    
+    /**
+     * Gets memory that is used or given to stripes as credit. Cheap, and
+     * never less than real usage.
+     * @return Reserved memory in bytes.
+     */
+    long getReserved() {
+        return reserved.get();
+    }
+    
+    /**
+     * Sums real memory usage.
+     * @return Used memory in bytes.
+     */
+    long get() {
+        long credit = 0;
+        for (int i = 0; i < stripes.length(); i += PADDING) {
+            credit += stripes.get(i);
+        }
+        return reserved.get() - credit;
+    }
+}
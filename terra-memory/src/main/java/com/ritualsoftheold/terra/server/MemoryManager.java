@@ -1,24 +1,48 @@
 package com.ritualsoftheold.terra.server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.StampedLock;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ritualsoftheold.terra.server.chunk.ChunkBuffer;
 import com.ritualsoftheold.terra.server.chunk.ChunkStorage;
 
 /**
- * Manages offheap memory.
+ * Manages offheap memory. One memory manager may govern multiple chunk
+ * storages, each with their own budget; storages may borrow memory that
+ * others do not use.
  *
  */
 public class MemoryManager implements MemoryUseListener {
+    
+    private static final Logger logger = LoggerFactory.getLogger(MemoryManager.class);
 
-    private volatile ChunkStorage chunkStorage;
+    /**
+     * Budgets of all managed chunk storages.
+     */
+    private final List<StorageBudget> budgets;
     
     /**
      * Preferred memory size. As long as it is below this, no need to act.
      */
     private final long preferredSize;
     
+    /**
+     * Once unloading starts, it continues until memory usage is below this.
+     */
+    private final long lowWatermark;
+    
     /**
      * Maximum memory usage. If this is exceeded, server will enter panic mode
      * and potentially crash.
@@ -26,9 +50,15 @@ public class MemoryManager implements MemoryUseListener {
     private final long maxSize;
     
     /**
-     * Currently used offheap memory.
+     * Currently used offheap memory. Triggers unloading when preferred size
+     * is exceeded.
      */
-    private final AtomicLong usedSize;
+    private final MemoryCounter usedSize;
+    
+    /**
+     * How much credit memory counter stripes take at once.
+     */
+    static final long COUNTER_GRANT = 1024 * 1024;
     
     /**
      * User specified memory panic handler.
@@ -46,30 +76,64 @@ public class MemoryManager implements MemoryUseListener {
     private volatile CountDownLatch managerLatch;
     
     /**
-     * Load markers acquire read for this lock, we acquire write for it.
+     * Load markers acquire write for this lock when they move; eviction
+     * reads optimistically. See {@link MarkerPositions}.
      */
     private final StampedLock loadMarkerLock;
     
+    /**
+     * Decides which buffers are unloaded first.
+     */
+    private volatile EvictionPolicy evictionPolicy;
+    
+    /**
+     * If manager thread should keep running.
+     */
+    private volatile boolean running;
+    
+    /**
+     * How often memory usage is checked even if nobody queues unloading, in
+     * milliseconds.
+     */
+    private static final long CHECK_INTERVAL = 1000;
+    
     private class ManagerThread extends Thread {
         
+        ManagerThread() {
+            super("Terra-MemoryManager");
+            setDaemon(true);
+        }
+        
         @Override
         public void run() {
-            try {
-                managerLatch.await();
-            } catch (InterruptedException e) {
-                // If waiting is interrupted, we should just continue NOW
-                // At least it is better than quitting and getting OS OOM kill us later
-            }
-            System.out.println("Begin unload, usedSize: " + usedSize);
-            long usedSizeVal = usedSize.get();
-            if (usedSizeVal > maxSize) { // Too much memory used already, free or panic!
-                unload(usedSizeVal - preferredSize, criticalPanicHandler);
-            } else if (usedSizeVal > preferredSize) { // Used memory is ok, but less would be better
-                unload(usedSizeVal - preferredSize, userPanicHandler);
+            while (running) {
+                CountDownLatch latch = managerLatch;
+                try {
+                    latch.await(CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // If waiting is interrupted, we should just continue NOW
+                    // At least it is better than quitting and getting OS OOM kill us later
+                }
+                if (!running) {
+                    break;
+                }
+                
+                // Replace the old latch; queueUnload() during this pass causes another one
+                managerLatch = new CountDownLatch(1);
+                
+                try {
+                    long usedSizeVal = usedSize.get();
+                    if (usedSizeVal > maxSize) { // Too much memory used already, free or panic!
+                        unload(usedSizeVal - lowWatermark, criticalPanicHandler);
+                    } else if (usedSizeVal > preferredSize) { // Used memory is ok, but less would be better
+                        unload(usedSizeVal - lowWatermark, userPanicHandler);
+                    }
+                    enforceBudgets(); // Even with spare memory, storages can't exceed their maximums
+                } catch (RuntimeException e) {
+                    // Dying here would leave memory unmanaged; try again on next pass
+                    logger.error("Memory manager pass failed", e);
+                }
             }
-            
-            // Replace the old latch
-            managerLatch = new CountDownLatch(1);
         }
     }
     
@@ -100,26 +164,86 @@ public class MemoryManager implements MemoryUseListener {
     }
     
     /**
-     * Initializes new instance of the memory manager.
+     * Initializes new instance of the memory manager. Low watermark will be
+     * 90% of preferred size.
      * @param preferred
      * @param max
      * @param panicHandler
      */
     public MemoryManager(long preferred, long max, MemoryPanicHandler panicHandler) {
+        this(preferred - preferred / 10, preferred, max, panicHandler);
+    }
+    
+    /**
+     * Initializes new instance of the memory manager.
+     * @param low When memory manager starts unloading, it continues until
+     * memory usage is below this.
+     * @param preferred When memory usage goes above this, unloading starts.
+     * @param max Maximum memory usage.
+     * @param panicHandler Decides what to do when enough memory cannot be
+     * freed.
+     */
+    public MemoryManager(long low, long preferred, long max, MemoryPanicHandler panicHandler) {
+        if (low > preferred || preferred > max) {
+            throw new IllegalArgumentException("must be low <= preferred <= max");
+        }
+        this.lowWatermark = low;
         this.preferredSize = preferred;
         this.maxSize = max;
-        this.usedSize = new AtomicLong();
+        this.usedSize = new MemoryCounter(Runtime.getRuntime().availableProcessors() * 2, COUNTER_GRANT,
+                preferred, reserved -> queueUnload());
         this.userPanicHandler = panicHandler;
+        this.budgets = new CopyOnWriteArrayList<>();
         
         this.managerLatch = new CountDownLatch(1);
         this.managerThread = new ManagerThread();
-        this.managerThread.start();
         this.criticalPanicHandler = new CriticalPanicHandler();
         this.loadMarkerLock = new StampedLock();
+        this.evictionPolicy = new ClockEvictionPolicy();
+        this.running = true;
+        this.managerThread.start();
+    }
+    
+    /**
+     * Stops the memory manager thread. Memory is no longer freed after this.
+     */
+    public void shutdown() {
+        running = false;
+        managerLatch.countDown();
     }
     
+    /**
+     * Makes this manage memory of given chunk storage, which may use all
+     * memory of this manager.
+     * @param chunkStorage Chunk storage.
+     */
     public void initialize(ChunkStorage chunkStorage) {
-        this.chunkStorage = chunkStorage;
+        addStorage(chunkStorage, preferredSize, maxSize);
+    }
+    
+    /**
+     * Makes this manage memory of given chunk storage. Memory use listener
+     * of the storage's buffer builder is replaced, so this must be called
+     * before the storage creates any buffers.
+     * @param chunkStorage Chunk storage.
+     * @param preferred Preferred memory usage of the storage. It may use
+     * more when other storages do not need their memory.
+     * @param max Maximum memory usage of the storage.
+     * @return Budget of the storage.
+     */
+    public StorageBudget addStorage(ChunkStorage chunkStorage, long preferred, long max) {
+        StorageBudget budget = new StorageBudget(this, chunkStorage, preferred, max, reserved -> queueUnload());
+        chunkStorage.getBufferBuilder().memListener(budget);
+        budgets.add(budget);
+        return budget;
+    }
+    
+    /**
+     * Stops managing memory of given chunk storage.
+     * @param chunkStorage Chunk storage.
+     */
+    public void removeStorage(ChunkStorage chunkStorage) {
+        budgets.removeIf(budget -> budget.getStorage() == chunkStorage);
     }
     
     /**
@@ -127,57 +251,58 @@ public class MemoryManager implements MemoryUseListener {
      * If it is currently in progress, nothing will happen.
      */
     public void queueUnload() {
-        System.out.println("Queue unload");
         managerLatch.countDown();
     }
     
     
     /**
-     * Attempts to unload chunks and octrees until specific amount of memory
-     * has been freed.
+     * Attempts to unload chunks until specific amount of memory has been
+     * freed. Storages that have borrowed most memory are unloaded first;
+     * others only if that is not enough.
      * @param goal How much we need memory.
+     * @param panicHandler What to do if goal cannot be met.
      */
     public void unload(long goal, MemoryPanicHandler panicHandler) {
         // Track how much we'd actually free memory
         long freed = 0;
+        List<CompletableFuture<Void>> unloads = new ArrayList<>();
         
-        // Unload (and save) octrees
-        // Begin at 1, master group must not be unloaded; ever
-      /*  for (int i = 1; i < octreeStorage.getGroupCount(); i++) {
-            if (octreeStorage.getUsedCount(i) < 1) { // Need to unload this group
-                System.out.println("Can unload: " + i);
-                octreeStorage.removeOctrees(i, true); // Remove groups, but save first
-                
-                freed += world.getOctreeStorage().getGroupSize();
-                if (freed >= goal) { // Hey, we can now release enough
-                    break;
-                }
+        List<StorageBudget> order = new ArrayList<>(budgets);
+        long[] borrowed = new long[order.size()];
+        for (int i = 0; i < borrowed.length; i++) {
+            borrowed[i] = order.get(i).getBorrowed();
+        }
+        Integer[] byBorrowed = new Integer[order.size()];
+        for (int i = 0; i < byBorrowed.length; i++) {
+            byBorrowed[i] = i;
+        }
+        Arrays.sort(byBorrowed, (a, b) -> Long.compare(borrowed[b], borrowed[a]));
+        
+        // First, take back what storages have borrowed
+        for (int i : byBorrowed) {
+            if (freed >= goal || borrowed[i] <= 0) {
+                break;
             }
+            freed += unloadStorage(order.get(i).getStorage(), Math.min(goal - freed, borrowed[i]), unloads);
         }
-        System.out.println("Octrees to free: " + freed);
         
-        // Mark which chunks to unload
-        AtomicReferenceArray<ChunkBuffer> allBuffers = world.getChunkStorage().getAllBuffers();
-        if (freed < goal) { // Only do this if unloading octrees wouldn't save enough space
-            for (int i = 0; i < allBuffers.length(); i++) {
-                ChunkBuffer buf = allBuffers.get(i); // TODO performance
-                if (buf == null) {
-                    // Buffer is not loaded at the moment, skip it
-                    continue;
-                }
-                
-                if (chunkStorage.getUsedCount(i) < 1) { // If not used, mark for unloading
-                    chunkStorage.unloadBuffer(buf.getId(), true);
-                    
-                    freed += buf.getMemorySize();
-                    if (freed >= goal) { // Hey, we can now release enough
-                        break;
-                    }
-                }
+        // If not enough, unload from everyone
+        for (int i : byBorrowed) {
+            if (freed >= goal) {
+                break;
+            }
+            freed += unloadStorage(order.get(i).getStorage(), goal - freed, unloads);
+        }
+        
+        awaitUnloads(unloads);
+        
+        // Recycled chunk memory counts as used; give it back if we must
+        for (StorageBudget budget : order) {
+            if (freed >= goal) {
+                break;
             }
+            freed += trimStorage(budget.getStorage());
         }
-        */
-        System.out.println("Could free: " + freed);
         
         // Ok, everything saved and so on... Can we save enough?
         if (freed < goal) { // Nope, and that could be bad
@@ -188,16 +313,117 @@ public class MemoryManager implements MemoryUseListener {
         }
     }
     
+    /**
+     * Unloads chunks of storages that exceed their maximum size, even if
+     * there is memory left in total.
+     */
+    private void enforceBudgets() {
+        List<CompletableFuture<Void>> unloads = new ArrayList<>();
+        List<StorageBudget> shortfall = new ArrayList<>();
+        List<long[]> progress = new ArrayList<>(); // Goal and freed memory of each shortfall
+        for (StorageBudget budget : budgets) {
+            long used = budget.getUsedSize();
+            if (used > budget.getMaxSize()) {
+                long goal = used - budget.getPreferredSize();
+                long freed = unloadStorage(budget.getStorage(), goal, unloads);
+                if (freed < goal) {
+                    shortfall.add(budget);
+                    progress.add(new long[] {goal, freed});
+                }
+            }
+        }
+        awaitUnloads(unloads);
+        
+        // Unloaded chunks may have ended up in free lists; trim them
+        for (int i = 0; i < shortfall.size(); i++) {
+            long[] goalFreed = progress.get(i);
+            goalFreed[1] += trimStorage(shortfall.get(i).getStorage());
+            if (goalFreed[1] < goalFreed[0]) {
+                userPanicHandler.goalNotMet(goalFreed[0], goalFreed[1]);
+            }
+        }
+    }
+    
+    /**
+     * Unloads (and saves) chunk buffers of a storage that nobody uses.
+     * @param storage Chunk storage.
+     * @param goal How much memory to free.
+     * @param unloads Where to add unload futures.
+     * @return How much memory will be freed.
+     */
+    private long unloadStorage(ChunkStorage storage, long goal, List<CompletableFuture<Void>> unloads) {
+        long freed = 0;
+        AtomicReferenceArray<ChunkBuffer> allBuffers = storage.getAllBuffers();
+        PrimitiveIterator.OfInt candidates = evictionPolicy.candidates(storage);
+        while (candidates.hasNext() && freed < goal) {
+            int i = candidates.nextInt();
+            ChunkBuffer buf = allBuffers.get(i);
+            if (buf == null || !buf.isReady()) {
+                // Buffer is not loaded at the moment, skip it
+                continue;
+            }
+            
+            if (storage.getUsedCount(i) < 1 && evictionPolicy.canEvict(storage, i)) { // If not used, unload it
+                freed += buf.getMemorySize();
+                unloads.add(storage.unloadBuffer(i, true));
+            }
+        }
+        return freed;
+    }
+    
+    /**
+     * Returns chunk memory that a storage keeps for recycling to the
+     * operating system.
+     * @param storage Chunk storage.
+     * @return How much memory was freed.
+     */
+    private long trimStorage(ChunkStorage storage) {
+        MemoryAllocator allocator = storage.getBufferBuilder().chunkAllocator();
+        if (allocator instanceof SlabAllocator) {
+            return ((SlabAllocator) allocator).trim();
+        }
+        return 0;
+    }
+    
+    /**
+     * Waits for saving to complete, so that next pass sees real memory usage.
+     */
+    private void awaitUnloads(List<CompletableFuture<Void>> unloads) {
+        try {
+            CompletableFuture.allOf(unloads.toArray(new CompletableFuture[unloads.size()])).join();
+        } catch (CompletionException e) {
+            // Buffers that failed to save were kept loaded
+            logger.warn("Failed to save chunk buffers before unloading, they were kept loaded", e.getCause());
+        }
+    }
+    
     // Manage usedSize from information that comes from octree/chunk storages
     
     @Override
     public void onAllocate(long amount) {
-        usedSize.addAndGet(amount);
+        usedSize.add(amount);
     }
 
     @Override
     public void onFree(long amount) {
-        usedSize.addAndGet(-amount);
+        usedSize.subtract(amount);
+    }
+    
+    /**
+     * Gets currently used offheap memory.
+     * @return Used memory in bytes.
+     */
+    public long getUsedSize() {
+        return usedSize.get();
+    }
+    
+    /**
+     * Sets which buffers are unloaded first. Default is
+     * {@link ClockEvictionPolicy}.
+     * @param policy Eviction policy.
+     */
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        this.evictionPolicy = policy;
     }
     
     public StampedLock getLoadMarkerLock() {
@@ -0,0 +1,198 @@
+package com.ritualsoftheold.terra.server;
+
+import java.util.Arrays;
+
+import net.openhft.chronicle.core.Memory;
+import net.openhft.chronicle.core.OS;
+
+/**
+ * Recycles memory blocks of a few predefined sizes. Each size class has
+ * its own free list; freed blocks are put there, and allocations of that
+ * class take blocks from it before asking the operating system for more.
+ * Allocations which do not fit to any class are passed through.
+ * 
+ * <p>Lengths are rounded up to the smallest class that fits them, so the
+ * same length must be given to {@link #free(long, long)} as was given to
+ * {@link #allocate(long)}. Users should account memory with
+ * {@link #blockSize(long)}; blocks in free lists are reported to memory
+ * use listener, if there is one. This is thread safe.
+ *
+ */
+public class SlabAllocator implements MemoryAllocator {
+    
+    private static final Memory mem = OS.memory();
+    
+    /**
+     * Free list of a single size class.
+     *
+     */
+    private static class SizeClass {
+        
+        /**
+         * Size of blocks in this class.
+         */
+        private final long size;
+        
+        /**
+         * Addresses of free blocks. Used as a stack.
+         */
+        private final @Pointer long[] free;
+        
+        /**
+         * How many free blocks there are.
+         */
+        private int count;
+        
+        private SizeClass(long size, int maxFree) {
+            this.size = size;
+            this.free = new long[maxFree];
+        }
+    }
+    
+    /**
+     * Size classes, sorted by their size.
+     */
+    private final SizeClass[] classes;
+    
+    /**
+     * Notified when blocks enter or leave free lists, or null.
+     */
+    private final MemoryUseListener cacheListener;
+    
+    /**
+     * Creates a new slab allocator.
+     * @param maxFree How many free blocks each size class may hold before
+     * they are returned to the operating system.
+     * @param sizes Sizes of size classes. May be empty, in which case
+     * nothing is recycled.
+     */
+    public SlabAllocator(int maxFree, long... sizes) {
+        this(null, maxFree, sizes);
+    }
+    
+    /**
+     * Creates a new slab allocator which reports its cached memory.
+     * @param cacheListener Memory use listener which is notified when
+     * blocks are put to free lists or taken from them. May be null.
+     * @param maxFree How many free blocks each size class may hold before
+     * they are returned to the operating system.
+     * @param sizes Sizes of size classes.
+     */
+    public SlabAllocator(MemoryUseListener cacheListener, int maxFree, long... sizes) {
+        this.cacheListener = cacheListener;
+        long[] sorted = sizes.clone();
+        Arrays.sort(sorted);
+        this.classes = new SizeClass[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i] < 1) {
+                throw new IllegalArgumentException("size class must be positive");
+            }
+            classes[i] = new SizeClass(sorted[i], maxFree);
+        }
+    }
+    
+    @Override
+    public @Pointer long allocate(long length) {
+        SizeClass sizeClass = classFor(length);
+        if (sizeClass == null) { // Not recycled
+            return mem.allocate(length);
+        }
+        
+        long addr = 0;
+        synchronized (sizeClass) {
+            if (sizeClass.count > 0) {
+                addr = sizeClass.free[--sizeClass.count];
+            }
+        }
+        if (addr != 0) { // Block is no longer cached; user accounts it now
+            if (cacheListener != null) {
+                cacheListener.onFree(sizeClass.size);
+            }
+            return addr;
+        }
+        return mem.allocate(sizeClass.size);
+    }
+    
+    @Override
+    public void free(@Pointer long addr, long length) {
+        SizeClass sizeClass = classFor(length);
+        if (sizeClass == null) {
+            mem.freeMemory(addr, length);
+            return;
+        }
+        
+        boolean cached = false;
+        synchronized (sizeClass) {
+            if (sizeClass.count < sizeClass.free.length) {
+                sizeClass.free[sizeClass.count++] = addr;
+                cached = true;
+            }
+        }
+        if (cached) { // User stops accounting it, but memory is still used
+            if (cacheListener != null) {
+                cacheListener.onAllocate(sizeClass.size);
+            }
+            return;
+        }
+        mem.freeMemory(addr, sizeClass.size); // Free list is full
+    }
+    
+    /**
+     * Returns all free blocks to the operating system.
+     * @return How much memory was freed.
+     */
+    public long trim() {
+        long freed = 0;
+        for (SizeClass sizeClass : classes) {
+            synchronized (sizeClass) {
+                for (int i = 0; i < sizeClass.count; i++) {
+                    mem.freeMemory(sizeClass.free[i], sizeClass.size);
+                }
+                freed += sizeClass.count * sizeClass.size;
+                sizeClass.count = 0;
+            }
+        }
+        if (cacheListener != null && freed > 0) {
+            cacheListener.onFree(freed);
+        }
+        return freed;
+    }
+    
+    /**
+     * Gets how much memory an allocation of given length really takes.
+     * @param length Length of data.
+     * @return Size of block that would be allocated for it.
+     */
+    public long blockSize(long length) {
+        SizeClass sizeClass = classFor(length);
+        return sizeClass != null ? sizeClass.size : length;
+    }
+    
+    /**
+     * Gets how much memory is in free lists, waiting to be reused.
+     * @return Cached memory in bytes.
+     */
+    public long getCachedMemory() {
+        long cached = 0;
+        for (SizeClass sizeClass : classes) {
+            synchronized (sizeClass) {
+                cached += sizeClass.count * sizeClass.size;
+            }
+        }
+        return cached;
+    }
+    
+    /**
+     * Finds smallest size class which can fit given length.
+     * @param length Length of data.
+     * @return Size class or null if length is too large.
+     */
+    private SizeClass classFor(long length) {
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.size >= length) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,75 @@
+package com.ritualsoftheold.terra.server;
+
+import com.ritualsoftheold.terra.server.chunk.ChunkStorage;
+
+/**
+ * Memory quota of one chunk storage under a shared memory manager. Storage
+ * may use more than its preferred size while the manager as a whole has
+ * spare memory, but never more than its maximum size.
+ *
+ */
+public class StorageBudget implements MemoryUseListener {
+    
+    private final MemoryManager manager;
+    
+    private final ChunkStorage storage;
+    
+    private final long preferredSize;
+    
+    private final long maxSize;
+    
+    /**
+     * Memory used by this storage. Triggers unloading when maximum size
+     * is exceeded.
+     */
+    private final MemoryCounter usedSize;
+    
+    StorageBudget(MemoryManager manager, ChunkStorage storage, long preferred, long max, MemoryCounter.ThresholdListener listener) {
+        if (preferred > max) {
+            throw new IllegalArgumentException("must be preferred <= max");
+        }
+        this.manager = manager;
+        this.storage = storage;
+        this.preferredSize = preferred;
+        this.maxSize = max;
+        this.usedSize = new MemoryCounter(Runtime.getRuntime().availableProcessors(), MemoryManager.COUNTER_GRANT,
+                max, listener);
+    }
+    
+    @Override
+    public void onAllocate(long amount) {
+        usedSize.add(amount);
+        manager.onAllocate(amount);
+    }
+    
+    @Override
+    public void onFree(long amount) {
+        usedSize.subtract(amount);
+        manager.onFree(amount);
+    }
+    
+    public ChunkStorage getStorage() {
+        return storage;
+    }
+    
+    public long getPreferredSize() {
+        return preferredSize;
+    }
+    
+    public long getMaxSize() {
+        return maxSize;
+    }
+    
+    public long getUsedSize() {
+        return usedSize.get();
+    }
+    
+    /**
+     * Gets how much this storage uses above its preferred size, i.e. how
+     * much it has borrowed from other storages.
+     * @return Borrowed memory in bytes, or negative if below preferred size.
+     */
+    public long getBorrowed() {
+        return usedSize.get() - preferredSize;
+    }
+}
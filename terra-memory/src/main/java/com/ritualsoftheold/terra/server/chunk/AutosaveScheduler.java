@@ -0,0 +1,205 @@
+package com.ritualsoftheold.terra.server.chunk;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ritualsoftheold.terra.server.io.ChangeJournal;
+import com.ritualsoftheold.terra.server.io.ChunkRecord;
+import com.ritualsoftheold.terra.server.io.RegionStorage;
+
+import net.openhft.chronicle.core.Memory;
+import net.openhft.chronicle.core.OS;
+
+/**
+ * Periodically saves modified chunks of a chunk storage. Only chunks that
+ * are marked dirty are written, so amount of I/O depends on how much the
+ * world is edited, not on how big it is. Writes are throttled to given
+ * rate.
+ *
+ */
+public class AutosaveScheduler {
+    
+    private static final Logger logger = LoggerFactory.getLogger(AutosaveScheduler.class);
+    
+    private static final Memory mem = OS.memory();
+    
+    private final ChunkStorage storage;
+    
+    private final RegionStorage regionStorage;
+    
+    /**
+     * Time between autosaves in nanoseconds.
+     */
+    private final long interval;
+    
+    /**
+     * Maximum bytes per second that are written, or 0 for no limit.
+     */
+    private final long bytesPerSecond;
+    
+    /**
+     * The thread which performs autosaves.
+     */
+    private final Thread saveThread;
+    
+    private volatile boolean running;
+    
+    /**
+     * When next write may start, with rate limit in mind.
+     */
+    private long nextWrite;
+    
+    private class SaveThread extends Thread {
+        
+        SaveThread() {
+            super("Terra-Autosave");
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            while (running) {
+                LockSupport.parkNanos(interval);
+                if (!running) {
+                    break;
+                }
+                
+                try {
+                    saveDirty();
+                } catch (RuntimeException e) {
+                    // Chunks are marked dirty again, next run will retry
+                    logger.error("Autosave failed, retrying on next run", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Creates an autosave scheduler. It does nothing until started.
+     * @param storage Chunk storage, which must have a region storage.
+     * @param interval Time between autosaves.
+     * @param unit Unit of interval.
+     * @param bytesPerSecond Maximum write rate, or 0 for no limit.
+     */
+    public AutosaveScheduler(ChunkStorage storage, long interval, TimeUnit unit, long bytesPerSecond) {
+        if (storage.getRegionStorage() == null) {
+            throw new IllegalArgumentException("chunk storage has nowhere to save");
+        }
+        this.storage = storage;
+        this.regionStorage = storage.getRegionStorage();
+        this.interval = unit.toNanos(interval);
+        this.bytesPerSecond = bytesPerSecond;
+        this.saveThread = new SaveThread();
+    }
+    
+    public void start() {
+        running = true;
+        saveThread.start();
+    }
+    
+    /**
+     * Stops autosaving. An autosave that is in progress will be completed.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(saveThread);
+    }
+    
+    /**
+     * Saves all dirty chunks of all loaded buffers. Called by autosave
+     * thread, but may also be called manually e.g. on shutdown.
+     * 
+     * <p>If storage has a change journal and all changes in it had been
+     * applied before saving started, the journal is checkpointed once
+     * everything has been saved.
+     */
+    public synchronized void saveDirty() {
+        ChangeJournal journal = storage.getChangeJournal();
+        long mark = 0;
+        boolean canCheckpoint = false;
+        long unloadFailures = storage.getUnloadFailures();
+        if (journal != null) {
+            mark = journal.mark();
+            canCheckpoint = storage.changesApplied(); // Otherwise, we'd save without some of them
+        }
+        
+        AtomicReferenceArray<ChunkBuffer> buffers = storage.getAllBuffers();
+        for (int i = 0; i < buffers.length(); i++) {
+            ChunkBuffer buf = buffers.get(i);
+            if (buf == null || !buf.isReady() || buf.nextDirty(0) == -1) {
+                continue; // Nothing to do here
+            }
+            
+            storage.markUsed(i); // Don't let it unload while we're reading it
+            try {
+                if (buffers.get(i) == buf) { // Still loaded
+                    saveDirty(buf);
+                }
+            } finally {
+                storage.markUnused(i);
+            }
+        }
+        
+        if (canCheckpoint) {
+            // Buffers that were unloaded meanwhile must have been saved, too
+            storage.awaitUnloads().join();
+            if (storage.getUnloadFailures() != unloadFailures) {
+                return; // Failed buffer was put back and we may have skipped it
+            }
+            try {
+                journal.checkpoint(mark);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    
+    private void saveDirty(ChunkBuffer buf) {
+        for (int index = buf.nextDirty(0); index != -1; index = buf.nextDirty(index + 1)) {
+            if (!buf.clearDirty(index)) {
+                continue; // Someone else saved it
+            }
+            
+            // Copy data while writers wait, so that it can be changed while we write
+            ChunkRecord record = buf.copyChunk(index);
+            long copy = record.getAddress();
+            int length = record.getLength();
+            
+            throttle(length);
+            try {
+                regionStorage.write(buf.getId() << 16 | index, record.getType(), copy, length).join();
+            } catch (CompletionException e) {
+                buf.markDirty(index); // Try again next time
+                throw e;
+            } finally {
+                if (copy != 0) {
+                    mem.freeMemory(copy, length);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Waits until given amount of bytes may be written.
+     * @param bytes Amount of bytes.
+     */
+    private void throttle(long bytes) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (nextWrite - now > 0) {
+            LockSupport.parkNanos(nextWrite - now);
+        } else {
+            nextWrite = now; // Don't save up unused budget
+        }
+        nextWrite += bytes * 1_000_000_000L / bytesPerSecond;
+    }
+}
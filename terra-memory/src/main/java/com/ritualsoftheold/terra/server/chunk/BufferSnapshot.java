@@ -0,0 +1,174 @@
+package com.ritualsoftheold.terra.server.chunk;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.ritualsoftheold.terra.server.Pointer;
+
+import net.openhft.chronicle.core.Memory;
+import net.openhft.chronicle.core.OS;
+
+/**
+ * Point-in-time view of one chunk buffer. Chunks are not copied when
+ * snapshot is taken; instead, a writer that is about to modify a chunk
+ * copies it first, unless the snapshot has already read it.
+ * 
+ * <p>Each chunk goes through states: untouched, then either copying and
+ * preserved (writer came first) or reading (snapshot came first), and
+ * finally done.
+ *
+ */
+class BufferSnapshot {
+    
+    private static final Memory mem = OS.memory();
+    
+    private static final int UNTOUCHED = 0, COPYING = 1, PRESERVED = 2, READING = 3, DONE = 4;
+    
+    private final ChunkBuffer buf;
+    
+    /**
+     * How many chunks the buffer had when snapshot was taken. Chunks
+     * created after that are not part of snapshot.
+     */
+    private final int count;
+    
+    private final AtomicIntegerArray states;
+    
+    /**
+     * Preserved copies of chunks. Published by writes to states.
+     */
+    private final byte[] types;
+    private final long[] addrs;
+    private final int[] lengths;
+    
+    BufferSnapshot(ChunkBuffer buf) {
+        this.buf = buf;
+        this.count = buf.getChunkCount();
+        this.states = new AtomicIntegerArray(count);
+        this.types = new byte[count];
+        this.addrs = new long[count];
+        this.lengths = new int[count];
+    }
+    
+    ChunkBuffer getBuffer() {
+        return buf;
+    }
+    
+    int getCount() {
+        return count;
+    }
+    
+    /**
+     * Called by writers before they modify a chunk. Preserves current data
+     * of the chunk if snapshot still needs it.
+     * @param index Index of chunk.
+     */
+    void beforeWrite(int index) {
+        if (index >= count) {
+            return; // Not part of snapshot
+        }
+        
+        while (true) {
+            int state = states.get(index);
+            switch (state) {
+                case UNTOUCHED:
+                    if (states.compareAndSet(index, UNTOUCHED, COPYING)) {
+                        preserve(index);
+                        states.set(index, PRESERVED);
+                        return;
+                    }
+                    break; // Lost race, check again
+                case COPYING:
+                case READING:
+                    Thread.onSpinWait(); // Another thread will soon be done
+                    break;
+                default: // PRESERVED or DONE
+                    return;
+            }
+        }
+    }
+    
+    private void preserve(int index) {
+        types[index] = buf.getChunkType(index);
+        long addr = buf.getChunkAddress(index);
+        int length = addr != 0 ? buf.getChunkLength(index) : 0;
+        lengths[index] = length;
+        if (length > 0) {
+            long copy = buf.getAllocator().allocate(length);
+            mem.copyMemory(addr, copy, length);
+            addrs[index] = copy;
+        }
+    }
+    
+    /**
+     * Reads a chunk as it was when snapshot was taken. Each chunk can be
+     * read only once.
+     * @param index Index of chunk.
+     * @param consumer Consumer for chunk data.
+     */
+    void read(int index, StorageSnapshot.ChunkConsumer consumer) {
+        int chunkId = buf.getId() << 16 | index;
+        while (true) {
+            int state = states.get(index);
+            switch (state) {
+                case UNTOUCHED:
+                    if (states.compareAndSet(index, UNTOUCHED, READING)) {
+                        // Writers wait until we're done, so live data is safe to use
+                        try {
+                            long addr = buf.getChunkAddress(index);
+                            consumer.accept(chunkId, buf.getChunkType(index), addr, addr != 0 ? buf.getChunkLength(index) : 0);
+                        } finally {
+                            states.set(index, DONE);
+                        }
+                        return;
+                    }
+                    break;
+                case COPYING:
+                    Thread.onSpinWait();
+                    break;
+                case PRESERVED:
+                    try {
+                        consumer.accept(chunkId, types[index], addrs[index], lengths[index]);
+                    } finally {
+                        free(index);
+                        states.set(index, DONE);
+                    }
+                    return;
+                default:
+                    throw new IllegalStateException("chunk " + index + " has already been read");
+            }
+        }
+    }
+    
+    /**
+     * Releases all preserved copies that were not read. After this, writers
+     * must no longer call this snapshot.
+     */
+    void release() {
+        for (int i = 0; i < count; i++) {
+            while (true) {
+                int state = states.get(i);
+                if (state == UNTOUCHED) { // Late writers must not copy anymore
+                    if (states.compareAndSet(i, UNTOUCHED, DONE)) {
+                        break;
+                    }
+                } else if (state == PRESERVED) {
+                    free(i);
+                    states.set(i, DONE);
+                    break;
+                } else if (state == DONE) {
+                    break;
+                } else {
+                    Thread.onSpinWait(); // Writer is copying, wait for it
+                }
+            }
+        }
+    }
+    
+    private void free(int index) {
+        @Pointer long addr = addrs[index];
+        if (addr != 0) {
+            buf.getAllocator().free(addr, lengths[index]);
+            addrs[index] = 0;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.ritualsoftheold.terra.server.chunk;
+
+import java.util.Arrays;
+
+import com.ritualsoftheold.terra.core.materials.Registry;
+
+/**
+ * Collects drained change queue entries of one chunk and coalesces them,
+ * so that only last write to each block is applied. Reused between
+ * flushes to avoid allocations.
+ *
+ */
+class ChangeBatch implements ChunkBuffer.ChangeConsumer {
+    
+    /**
+     * Entries in order they were queued.
+     */
+    private long[] entries;
+    
+    /**
+     * Sort keys: block index in upper 32 bits, position in entries in
+     * lower 32 bits.
+     */
+    private long[] keys;
+    
+    private int count;
+    
+    /**
+     * Coalesced block indices and materials.
+     */
+    private int[] indices;
+    private Object[] refs;
+    
+    ChangeBatch(int capacity) {
+        this.entries = new long[capacity];
+        this.keys = new long[capacity];
+        this.indices = new int[capacity];
+        this.refs = new Object[capacity];
+    }
+    
+    @Override
+    public void accept(long entry) {
+        if (count == entries.length) { // Grow all arrays
+            int capacity = count * 2;
+            entries = Arrays.copyOf(entries, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            indices = new int[capacity];
+            refs = new Object[capacity];
+        }
+        keys[count] = (entry & 0xffffffff00000000L) | count;
+        entries[count++] = entry;
+    }
+    
+    /**
+     * Keeps only last write to each block and resolves materials for them.
+     * Surviving writes are ordered by block index.
+     * @param registry Material registry.
+     * @return How many writes survived.
+     */
+    int coalesce(Registry registry) {
+        Arrays.sort(keys, 0, count);
+        
+        int survived = 0;
+        for (int i = 0; i < count; i++) {
+            long key = keys[i];
+            int block = (int) (key >>> 32);
+            if (i + 1 < count && (int) (keys[i + 1] >>> 32) == block) {
+                continue; // Overwritten later in same batch
+            }
+            long entry = entries[(int) key];
+            indices[survived] = block;
+            refs[survived] = registry.getForWorldId(ChunkBuffer.changeWorldId(entry));
+            survived++;
+        }
+        return survived;
+    }
+    
+    int[] getIndices() {
+        return indices;
+    }
+    
+    Object[] getRefs() {
+        return refs;
+    }
+    
+    /**
+     * Copies entries of this batch, in order they were queued.
+     * @return Entries.
+     */
+    long[] copyEntries() {
+        return Arrays.copyOf(entries, count);
+    }
+    
+    /**
+     * Clears this batch for next flush.
+     * @param survived How many writes last coalesce left.
+     */
+    void clear(int survived) {
+        Arrays.fill(refs, 0, survived, null); // Don't keep materials alive
+        count = 0;
+    }
+}
@@ -1,12 +1,28 @@
 package com.ritualsoftheold.terra.server.chunk;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
 
+import com.ritualsoftheold.terra.core.BlockBuffer;
+import com.ritualsoftheold.terra.server.ArenaAllocator;
 import com.ritualsoftheold.terra.server.MemoryAllocator;
 import com.ritualsoftheold.terra.server.MemoryUseListener;
 import com.ritualsoftheold.terra.server.Pointer;
+import com.ritualsoftheold.terra.server.SlabAllocator;
+import com.ritualsoftheold.terra.server.data.BufferWithFormat;
+import com.ritualsoftheold.terra.server.data.OffheapObject;
+import com.ritualsoftheold.terra.server.io.ChangeJournal;
+import com.ritualsoftheold.terra.server.io.ChunkRecord;
 
 import net.openhft.chronicle.core.Memory;
 import net.openhft.chronicle.core.OS;
@@ -32,6 +48,19 @@ public class ChunkBuffer {
     private final @Pointer
     long changeQueues;
     
+    /**
+     * State of change queue of each chunk. Bit 32 tells which of its two
+     * halves producers currently use; lower 32 bits are how many entries
+     * have been reserved in that half.
+     */
+    private final AtomicLongArray queueStates;
+    
+    /**
+     * How many entries producers have finished writing, for each half of
+     * each chunk's change queue.
+     */
+    private final AtomicIntegerArray queueCommits;
+    
     /**
      * Current count of chunks in this buffer. This also serves
      * as first free index to this buffer.
@@ -58,24 +87,90 @@ public class ChunkBuffer {
      */
     private final MemoryUseListener memListener;
     
+    /**
+     * Memory addresses of chunk data. 0 means that chunk has no data.
+     */
+    private final AtomicLongArray chunkAddrs;
+    
+    /**
+     * Lengths of chunk data.
+     */
+    private final AtomicIntegerArray chunkLengths;
+    
+    /**
+     * Types of chunks, see {@link ChunkType}.
+     */
+    private final AtomicIntegerArray chunkTypes;
+    
+    /**
+     * Drained changes that could not be written, per chunk.
+     */
+    private final AtomicReferenceArray<long[]> unflushed;
+    
+    /**
+     * Bitmap of chunks that have been modified since they were last saved.
+     */
+    private final AtomicLongArray dirty;
+    
+    /**
+     * Snapshot that is in progress, or null.
+     */
+    private volatile BufferSnapshot snapshot;
+    
+    /**
+     * Writers hold read lock of this while modifying chunks; snapshots are
+     * installed with write lock.
+     */
+    private final StampedLock writeLock;
+    
+    /**
+     * Where chunk memory actually comes from. Usually shared between
+     * all buffers of a storage, so that memory can be recycled.
+     */
+    private final MemoryAllocator backingAllocator;
+    
+    /**
+     * If chunks are allocated from an arena, it. Otherwise null.
+     */
+    private final ArenaAllocator arena;
+    
+    /**
+     * If chunks are allocated from a slab allocator, it. Otherwise null.
+     */
+    private final SlabAllocator slab;
+    
+    /**
+     * Start of memory mapped file which chunks may point to, or 0.
+     */
+    private volatile @Pointer long mappedAddr;
+    
+    /**
+     * Length of memory mapped file.
+     */
+    private volatile long mappedLength;
+    
     /**
      * Allocates and deallocates memory for chunks on demand.
      *
      */
     public class Allocator implements MemoryAllocator {
         
-        // TODO optimize to recycle memory
-        
         @Override
         public @Pointer long allocate(long length) {
-            memListener.onAllocate(length);
-            return mem.allocate(length);
+            long accounted = accountedSize(length);
+            if (accounted != 0) {
+                memListener.onAllocate(accounted);
+            }
+            return backingAllocator.allocate(length);
         }
         
         @Override
         public void free(@Pointer long addr, long length) {
-            mem.freeMemory(addr, length);
-            memListener.onFree(length);
+            backingAllocator.free(addr, length);
+            long accounted = accountedSize(length);
+            if (accounted != 0) {
+                memListener.onFree(accounted);
+            }
         }
         
         /**
@@ -103,10 +198,10 @@ public class ChunkBuffer {
                     dummyLength = -1; // Disallow further dummy allocations
                     return dummyAddr;
                 } else {
-                    // Get rid of dummy memory
-                    // TODO recycle
-                    mem.freeMemory(dummyAddr, dummyLength);
-                    memListener.onFree(dummyLength);
+                    if (dummyLength != -1) { // Give dummy memory back for recycling
+                        free(dummyAddr, dummyLength);
+                        dummyLength = -1;
+                    }
                     return super.allocate(length); // Do real allocation
                 }
             }
@@ -129,11 +224,17 @@ public class ChunkBuffer {
     private final boolean perChunkReady;
     
     public ChunkBuffer(ChunkStorage storage, int id, int maxChunks, int chunkQueueSize, MemoryUseListener memListener, boolean perChunkReady) {
+        this(storage, id, maxChunks, chunkQueueSize, memListener, perChunkReady, new SlabAllocator(0));
+    }
+    
+    public ChunkBuffer(ChunkStorage storage, int id, int maxChunks, int chunkQueueSize, MemoryUseListener memListener, boolean perChunkReady,
+            MemoryAllocator backingAllocator) {
         Objects.requireNonNull(storage);
         Objects.checkIndex(id, storage.getAllBuffers().length());
         Objects.checkIndex(maxChunks, Integer.MAX_VALUE);
         Objects.checkIndex(chunkQueueSize, Integer.MAX_VALUE);
         Objects.requireNonNull(memListener);
+        Objects.requireNonNull(backingAllocator);
         
         this.storage = storage;
 
@@ -147,12 +248,26 @@ public class ChunkBuffer {
         queueSize = chunkQueueSize;
         int queueMemoryNeeded = 2 * 8 * queueSize * maxChunks; // Two queues (one for swapping), each entry is a long
         changeQueues = mem.allocate(queueMemoryNeeded);
+        staticDataLength = queueMemoryNeeded;
         
         // Save ref to memory use listener and notify it
         this.memListener = memListener;
-        memListener.onAllocate(changeQueues);
+        memListener.onAllocate(queueMemoryNeeded);
+        queueStates = new AtomicLongArray(maxChunks);
+        queueCommits = new AtomicIntegerArray(2 * maxChunks);
+        
+        // Chunks have no data until it is loaded or created
+        chunkAddrs = new AtomicLongArray(maxChunks);
+        chunkLengths = new AtomicIntegerArray(maxChunks);
+        chunkTypes = new AtomicIntegerArray(maxChunks);
+        dirty = new AtomicLongArray((maxChunks + 63) >>> 6);
+        unflushed = new AtomicReferenceArray<>(maxChunks);
+        writeLock = new StampedLock();
         
         // Initialize chunk memory allocator
+        this.backingAllocator = backingAllocator;
+        this.arena = backingAllocator instanceof ArenaAllocator ? (ArenaAllocator) backingAllocator : null;
+        this.slab = backingAllocator instanceof SlabAllocator ? (SlabAllocator) backingAllocator : null;
         this.allocator = new Allocator();
         
         this.perChunkReady = perChunkReady;
@@ -170,6 +285,7 @@ public class ChunkBuffer {
             return -1;
         }
         
+        markDirty(index); // Must be saved even if empty, so that id stays taken
         return index;
     }
     
@@ -186,6 +302,419 @@ public class ChunkBuffer {
     public int getChunkCount() {
         return Math.min(chunkCount.get(), maxCount);
     }
+    
+    /**
+     * Replaces data of a chunk. Previous data is freed, so it must not
+     * be in use anymore. Once buffer is ready, this must be called between
+     * {@link #beginWrite(int)} and {@link #endWrite(long)}.
+     * @param index Index of chunk in this buffer.
+     * @param type Chunk type, see {@link ChunkType}.
+     * @param addr Address of new data, allocated with {@link #getAllocator()}.
+     * May be 0 if chunk has no data.
+     * @param length Length of new data.
+     */
+    public void setChunk(int index, byte type, @Pointer long addr, int length) {
+        beforeWrite(index);
+        long oldAddr = chunkAddrs.get(index);
+        int oldLength = chunkLengths.get(index);
+        
+        chunkLengths.set(index, length);
+        chunkTypes.set(index, type);
+        chunkAddrs.set(index, addr); // Volatile write publishes length and type too
+        markDirty(index);
+        
+        if (oldAddr != 0 && !isMapped(oldAddr)) { // Mapped data is freed on unload
+            allocator.free(oldAddr, oldLength);
+        }
+    }
+    
+    /**
+     * Makes sure that data of a chunk can be modified and returns its
+     * address. If chunk still points to a memory mapped file, it gets
+     * a private copy of its data first. This must be called before
+     * modifying chunk data.
+     * @param index Index of chunk in this buffer.
+     * @return Address of writable chunk data, or 0 if chunk has no data.
+     */
+    public @Pointer long ensureWritable(int index) {
+        beforeWrite(index);
+        markDirty(index); // Caller is about to modify it
+        long addr = chunkAddrs.get(index);
+        if (addr == 0 || !isMapped(addr)) {
+            return addr; // Already writable
+        }
+        
+        // Copy on write
+        int length = chunkLengths.get(index);
+        long copyAddr = allocator.allocate(length);
+        mem.copyMemory(addr, copyAddr, length);
+        if (!chunkAddrs.compareAndSet(index, addr, copyAddr)) {
+            // Someone else copied it first, use theirs
+            allocator.free(copyAddr, length);
+            return chunkAddrs.get(index);
+        }
+        return copyAddr;
+    }
+    
+    /**
+     * Handles change queue entries when a queue is drained.
+     *
+     */
+    @FunctionalInterface
+    public interface ChangeConsumer {
+        
+        void accept(long entry);
+    }
+    
+    /**
+     * Creates block buffers over chunk data when changes are flushed.
+     *
+     */
+    @FunctionalInterface
+    public interface TargetFactory {
+        
+        /**
+         * Creates a block buffer over data of a chunk. If it is promoted to
+         * another format, new data must be allocated with
+         * {@link ChunkBuffer#getAllocator()} and implement
+         * {@link OffheapObject}.
+         * @param type Chunk type.
+         * @param addr Address of writable chunk data, or 0 if chunk has no
+         * data.
+         * @param length Length of chunk data.
+         * @return Block buffer.
+         */
+        WrappedCriticalBuffer create(byte type, @Pointer long addr, int length);
+    }
+    
+    /**
+     * Adds an entry to change queue of a chunk. This may be called from
+     * multiple threads at once, and is lock-free unless a change journal is
+     * in use. Then entry is also appended to it, in same order as entries
+     * are queued.
+     * @param index Index of chunk in this buffer.
+     * @param entry Change entry.
+     * @return If the entry was queued. False means that the queue is full,
+     * and should be drained before trying again.
+     */
+    public boolean enqueueChange(int index, long entry) {
+        ChangeJournal journal = storage.getChangeJournal();
+        long reserved;
+        if (journal != null) { // Record before it can be applied, in same order as queued
+            reserved = journal.append(bufferId << 16 | index, entry, () -> reserveChange(index));
+        } else {
+            reserved = reserveChange(index);
+        }
+        if (reserved < 0) {
+            return false; // Full
+        }
+        int half = (int) (reserved >>> 32);
+        int slot = (int) reserved;
+        
+        mem.writeLong(queueAddress(index, half) + slot * 8, entry);
+        queueCommits.incrementAndGet(index * 2 + half); // Publishes the entry
+        markDirty(index);
+        return true;
+    }
+    
+    /**
+     * Reserves a slot in active half of change queue of a chunk.
+     * @param index Index of chunk in this buffer.
+     * @return Half in upper and slot in lower 32 bits, or -1 if the queue
+     * is full.
+     */
+    private long reserveChange(int index) {
+        while (true) {
+            long state = queueStates.get(index);
+            if ((int) state >= queueSize) {
+                return -1;
+            }
+            if (queueStates.compareAndSet(index, state, state + 1)) {
+                return state;
+            }
+        }
+    }
+    
+    /**
+     * Drains change queue of a chunk. Producers switch to other half of the
+     * queue at once, so they can keep enqueuing while entries of this half
+     * are handled. Only one thread may drain a chunk at time.
+     * @param index Index of chunk in this buffer.
+     * @param consumer Consumer for entries, called in order they were
+     * reserved.
+     * @return How many entries were drained.
+     */
+    public int drainChanges(int index, ChangeConsumer consumer) {
+        long state = queueStates.get(index);
+        if ((int) state == 0) {
+            return 0; // Nothing queued
+        }
+        
+        // Swap halves; other half was emptied by previous drain
+        // Only drainer changes active half, so it is same as we just read
+        int half = (int) (state >>> 32);
+        int count = (int) queueStates.getAndSet(index, (long) (half ^ 1) << 32);
+        
+        // Wait for producers that reserved slots before swap to finish
+        int commitIndex = index * 2 + half;
+        while (queueCommits.get(commitIndex) < count) {
+            Thread.onSpinWait();
+        }
+        
+        long addr = queueAddress(index, half);
+        try {
+            for (int i = 0; i < count; i++) {
+                consumer.accept(mem.readLong(addr + i * 8));
+            }
+        } finally {
+            queueCommits.set(commitIndex, 0); // Ready to be swapped in again
+        }
+        return count;
+    }
+    
+    /**
+     * Checks if a chunk has changes that have not been applied to its data.
+     * @param index Index of chunk in this buffer.
+     * @return If there are queued changes.
+     */
+    public boolean hasQueuedChanges(int index) {
+        return (int) queueStates.get(index) != 0 || unflushed.get(index) != null;
+    }
+    
+    /**
+     * Batches that flushes reuse, one per thread.
+     */
+    private static final ThreadLocal<ChangeBatch> flushBatches = ThreadLocal.withInitial(() -> new ChangeBatch(64));
+    
+    /**
+     * Drains change queue of a chunk and applies changes to its data. When
+     * same block was changed multiple times, only last change is applied.
+     * All changes are written as one batch, so that chunk format is checked
+     * only once; if format is promoted, chunk is updated to point to new
+     * data. Only one thread may flush a chunk at time. If writing fails,
+     * drained changes are kept and applied first by next flush.
+     * @param index Index of chunk in this buffer.
+     * @param targets Creates block buffer over data of the chunk.
+     * @return How many blocks were written.
+     */
+    public int flushChanges(int index, TargetFactory targets) {
+        storage.beginFlush(); // Checkpoints must not miss changes that we have drained
+        try {
+            return applyChanges(index, targets);
+        } finally {
+            storage.endFlush();
+        }
+    }
+    
+    private int applyChanges(int index, TargetFactory targets) {
+        ChangeBatch batch = flushBatches.get();
+        long[] retry = unflushed.getAndSet(index, null);
+        if (retry != null) { // Older than anything in queue
+            for (long entry : retry) {
+                batch.accept(entry);
+            }
+        }
+        if (drainChanges(index, batch) == 0 && retry == null) {
+            return 0;
+        }
+        
+        int count = 0;
+        boolean written = false;
+        try {
+            count = batch.coalesce(storage.getRegistry());
+            long stamp = beginWrite(index);
+            try {
+                long addr = ensureWritable(index);
+                WrappedCriticalBuffer target = targets.create(getChunkType(index), addr, addr != 0 ? getChunkLength(index) : 0);
+                BlockBuffer original = target.getWrapped();
+                target.writeBatch(batch.getIndices(), batch.getRefs(), count);
+                
+                BlockBuffer promoted = target.getWrapped();
+                if (promoted != original) { // Chunk must point to promoted data
+                    if (!(promoted instanceof OffheapObject)) {
+                        throw new IllegalStateException("promoted chunk data is not offheap");
+                    }
+                    OffheapObject data = (OffheapObject) promoted;
+                    setChunk(index, ((BufferWithFormat) promoted).getDataFormat().getChunkType(),
+                            data.memoryAddress(), data.memoryLength());
+                }
+                markDirty(index); // A save may have copied it before we wrote
+                written = true;
+            } finally {
+                endWrite(stamp);
+            }
+        } finally {
+            if (!written) { // Don't lose changes that were already drained
+                unflushed.set(index, batch.copyEntries());
+            }
+            batch.clear(count);
+        }
+        return count;
+    }
+    
+    /**
+     * Creates a change queue entry for setting a block.
+     * @param blockIndex Index of block in chunk.
+     * @param worldId World id of material.
+     * @return Change entry.
+     */
+    public static long changeEntry(int blockIndex, int worldId) {
+        return (long) blockIndex << 32 | (worldId & 0xffffffffL);
+    }
+    
+    public static int changeBlockIndex(long entry) {
+        return (int) (entry >>> 32);
+    }
+    
+    public static int changeWorldId(long entry) {
+        return (int) entry;
+    }
+    
+    private @Pointer long queueAddress(int index, int half) {
+        return changeQueues + ((long) index * 2 + half) * queueSize * 8;
+    }
+    
+    /**
+     * Begins modifying a chunk. Modifications must happen between this and
+     * {@link #endWrite(long)} to be consistent with snapshots.
+     * @param index Index of chunk in this buffer.
+     * @return Stamp for ending the write.
+     */
+    public long beginWrite(int index) {
+        long stamp = writeLock.readLock();
+        beforeWrite(index);
+        return stamp;
+    }
+    
+    public void endWrite(long stamp) {
+        writeLock.unlockRead(stamp);
+    }
+    
+    /**
+     * Copies data of a chunk. Writers are blocked while it is copied, so
+     * the copy is consistent.
+     * @param index Index of chunk in this buffer.
+     * @return Copy of chunk. Its data was allocated with
+     * {@link OS#memory()} and must be freed by caller.
+     */
+    public ChunkRecord copyChunk(int index) {
+        long stamp = writeLock.writeLock();
+        try {
+            long addr = chunkAddrs.get(index);
+            int length = addr != 0 ? chunkLengths.get(index) : 0;
+            long copy = 0;
+            if (length > 0) {
+                copy = mem.allocate(length);
+                mem.copyMemory(addr, copy, length);
+            }
+            return new ChunkRecord(getChunkType(index), copy, length);
+        } finally {
+            writeLock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Lets snapshot that is in progress preserve a chunk before it is
+     * modified.
+     * @param index Index of chunk in this buffer.
+     */
+    private void beforeWrite(int index) {
+        BufferSnapshot snap = snapshot;
+        if (snap != null) {
+            snap.beforeWrite(index);
+        }
+    }
+    
+    /**
+     * Installs or removes a snapshot. Caller must hold write lock.
+     * @param snap Snapshot, or null.
+     */
+    void setSnapshot(BufferSnapshot snap) {
+        if (snap != null && snapshot != null) {
+            throw new IllegalStateException("snapshot already in progress");
+        }
+        snapshot = snap;
+    }
+    
+    StampedLock getWriteLock() {
+        return writeLock;
+    }
+    
+    /**
+     * Marks a chunk as modified, so that it will be saved by next autosave.
+     * @param index Index of chunk in this buffer.
+     */
+    public void markDirty(int index) {
+        long bit = 1L << index;
+        if ((dirty.get(index >>> 6) & bit) == 0) { // Avoid contended writes if already set
+            dirty.accumulateAndGet(index >>> 6, bit, (word, b) -> word | b);
+        }
+    }
+    
+    /**
+     * Clears modified mark of a chunk. This should be done before its data
+     * is copied for saving; if saving fails, it must be marked again.
+     * @param index Index of chunk in this buffer.
+     * @return If the chunk was marked as modified.
+     */
+    public boolean clearDirty(int index) {
+        long bit = 1L << index;
+        return (dirty.getAndAccumulate(index >>> 6, ~bit, (word, b) -> word & b) & bit) != 0;
+    }
+    
+    public boolean isDirty(int index) {
+        return (dirty.get(index >>> 6) & (1L << index)) != 0;
+    }
+    
+    /**
+     * Finds next modified chunk.
+     * @param from Index where to start searching (inclusive).
+     * @return Index of chunk, or -1 if there are no modified chunks left.
+     */
+    public int nextDirty(int from) {
+        int word = from >>> 6;
+        if (word >= dirty.length()) {
+            return -1;
+        }
+        long bits = dirty.get(word) & (-1L << from); // Ignore chunks before start
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            word++;
+            if (word == dirty.length()) {
+                return -1;
+            }
+            bits = dirty.get(word);
+        }
+    }
+    
+    /**
+     * Checks if given address is inside memory mapped file of this buffer.
+     * @param addr Memory address.
+     * @return If it points to mapped memory.
+     */
+    private boolean isMapped(@Pointer long addr) {
+        long start = mappedAddr;
+        return start != 0 && addr >= start && addr < start + mappedLength;
+    }
+    
+    /**
+     * Gets memory address of data of a chunk.
+     * @param index Index of chunk in this buffer.
+     * @return Memory address, or 0 if chunk has no data.
+     */
+    public @Pointer long getChunkAddress(int index) {
+        return chunkAddrs.get(index);
+    }
+    
+    public int getChunkLength(int index) {
+        return chunkLengths.get(index);
+    }
+    
+    public byte getChunkType(int index) {
+        return (byte) chunkTypes.get(index);
+    }
 
     /**
      * Allows building chunk buffers. One builder can create as many buffers
@@ -200,6 +729,10 @@ public class ChunkBuffer {
         private int chunkQueueSize;
         private boolean perChunkReady;
         private MemoryUseListener memListener;
+        private long[] sizeClasses = new long[0];
+        private int maxFreeChunks;
+        private MemoryAllocator chunkAllocator;
+        private long arenaSize;
         
         public Builder maxChunks(int maxChunks) {
             this.maxChunks = maxChunks;
@@ -225,6 +758,7 @@ public class ChunkBuffer {
         
         public Builder memListener(MemoryUseListener listener) {
             this.memListener = listener;
+            this.chunkAllocator = null; // Settings changed
             return this;
         }
         
@@ -241,8 +775,69 @@ public class ChunkBuffer {
             return perChunkReady;
         }
         
+        /**
+         * Sets sizes of chunk data that should be recycled instead of being
+         * freed, for example sizes of palette16 and uncompressed chunks.
+         * @param sizes Size classes in bytes.
+         * @return This builder.
+         */
+        public Builder sizeClasses(long... sizes) {
+            this.sizeClasses = sizes.clone();
+            this.chunkAllocator = null; // Settings changed
+            return this;
+        }
+        
+        public long[] sizeClasses() {
+            return sizeClasses.clone();
+        }
+        
+        /**
+         * Sets how many free chunks of each size class are kept for reuse.
+         * @param count Maximum free chunk count per size class.
+         * @return This builder.
+         */
+        public Builder maxFreeChunks(int count) {
+            this.maxFreeChunks = count;
+            this.chunkAllocator = null; // Settings changed
+            return this;
+        }
+        
+        public int maxFreeChunks() {
+            return maxFreeChunks;
+        }
+        
+        /**
+         * Enables arena mode. Each buffer reserves memory of given size up
+         * front and allocates chunks from it; more is reserved if needed.
+         * All of it is freed at once when the buffer is unloaded.
+         * @param size Arena region size in bytes, or 0 to disable arenas.
+         * @return This builder.
+         */
+        public Builder arenaSize(long size) {
+            this.arenaSize = size;
+            return this;
+        }
+        
+        public long arenaSize() {
+            return arenaSize;
+        }
+        
+        /**
+         * Gets the allocator that is shared by all buffers built by this.
+         * Memory freed by one buffer may be reused by others.
+         * @return Chunk memory allocator.
+         */
+        public synchronized MemoryAllocator chunkAllocator() {
+            if (chunkAllocator == null) { // Free lists are accounted to memory listener
+                chunkAllocator = new SlabAllocator(memListener, maxFreeChunks, sizeClasses);
+            }
+            return chunkAllocator;
+        }
+        
         public ChunkBuffer build(ChunkStorage storage, int index) {
-            return new ChunkBuffer(storage, index, maxChunks, chunkQueueSize, memListener, perChunkReady);
+            // In arena mode, each buffer owns its memory
+            MemoryAllocator allocator = arenaSize > 0 ? new ArenaAllocator(arenaSize, memListener) : chunkAllocator();
+            return new ChunkBuffer(storage, index, maxChunks, chunkQueueSize, memListener, perChunkReady, allocator);
         }
     }
     
@@ -259,33 +854,165 @@ public class ChunkBuffer {
             int length = mem.readInt(addr + 1);
             addr += 5; // To actual chunk data
             
+            int index = newChunk();
+            if (index == -1) {
+                throw new IllegalStateException("too many chunks for this buffer");
+            }
+            
             // Copy chunk data
             // Can't use the data in buffer, partial freeing of allocated memory is not safe
-            long copyAddr = allocator.allocate(length);
-            mem.copyMemory(addr, copyAddr, length);
+            long copyAddr = 0;
+            if (length > 0) {
+                copyAddr = allocator.allocate(length);
+                mem.copyMemory(addr, copyAddr, length);
+            }
+            setChunk(index, type, copyAddr, length);
+            clearDirty(index); // Same as what it was loaded from
+            
             // Increment pointer to point to next chunk
             addr += length;
         }
     }
     
-    private int getContentSize() {
-        int size = 0;
+    /**
+     * Loads chunks without copying them by memory mapping given file.
+     * File must contain data in same format that {@link #load(long, int)}
+     * expects. Chunks point directly to the mapping until they are first
+     * modified, at which point they get private copies (see
+     * {@link #ensureWritable(int)}). Mapping is kept until this buffer is
+     * unloaded, even if the channel is closed. Only one file can be mapped
+     * per buffer.
+     * @param channel File channel, open for reading.
+     * @param count How many chunks are in that file.
+     * @throws IOException When mapping fails, or file is truncated or
+     * corrupted.
+     */
+    public void loadMapped(FileChannel channel, int count) throws IOException {
+        if (mappedAddr != 0) {
+            throw new IllegalStateException("a file is already mapped");
+        }
+        long size = channel.size();
+        if (size == 0) {
+            if (count > 0) {
+                throw new IOException("file is empty, expected " + count + " chunks");
+            }
+            return; // Nothing to map
+        }
+        
+        long start = OS.map(channel, FileChannel.MapMode.READ_ONLY, 0, size);
         
-        int count = chunkCount.get();
+        // Check all chunks before using any of them
+        long end = start + size;
+        long addr = start;
         for (int i = 0; i < count; i++) {
+            if (end - addr < 5) {
+                OS.unmap(start, size);
+                throw new IOException("chunk " + i + " header is past end of file");
+            }
+            int length = mem.readInt(addr + 1);
+            addr += 5;
+            if (length < 0 || end - addr < length) {
+                OS.unmap(start, size);
+                throw new IOException("chunk " + i + " has invalid length " + length);
+            }
+            addr += length;
+        }
+        mappedLength = size;
+        mappedAddr = start;
+        
+        addr = start;
+        for (int i = 0; i < count; i++) {
+            // Read metadata
+            byte type = mem.readByte(addr);
+            int length = mem.readInt(addr + 1);
+            addr += 5; // To actual chunk data
+            
+            int index = newChunk();
+            if (index == -1) {
+                throw new IllegalStateException("too many chunks for this buffer");
+            }
+            
+            // Point to mapping; no copying, no allocations
+            setChunk(index, type, length > 0 ? addr : 0, length);
+            clearDirty(index); // Same as what is on disk
+            addr += length;
+        }
+    }
+    
+    /**
+     * Gets total length of chunk data.
+     * @param includeMapped If chunks that point to memory mapped file
+     * should be included.
+     * @return Content size in bytes.
+     */
+    private long getContentSize(boolean includeMapped) {
+        long size = 0;
+        
+        int count = getChunkCount();
+        for (int i = 0; i < count; i++) {
+            long addr = chunkAddrs.get(i);
+            if (addr != 0 && (includeMapped || !isMapped(addr))) {
+                size += chunkLengths.get(i);
+            }
         }
         
         return size;
     }
     
-    public int getSaveSize() {
-        int count = chunkCount.get();
-        return getContentSize() + count * 5;
+    /**
+     * Gets how many bytes {@link #save(long, long)} would currently write.
+     * Chunks may grow before saving, so the result is only an estimate.
+     * @return Save size in bytes.
+     */
+    public long getSaveSize() {
+        int count = getChunkCount();
+        return getContentSize(true) + count * 5;
     }
     
-    public void save(@Pointer long addr) {
-        int count = chunkCount.get();
+    /**
+     * Saves all chunks to given memory address, in format that
+     * {@link #load(long, int)} expects. Writers are blocked while saving,
+     * so that chunks are consistent and their size does not change. If
+     * they do not fit in given space, nothing is written; caller should
+     * try again with at least returned amount of space.
+     * @param addr Address where to write.
+     * @param capacity How many bytes there is space for.
+     * @return How many bytes were written, or needed if that is more than
+     * capacity.
+     */
+    public long save(@Pointer long addr, long capacity) {
+        long stamp = writeLock.writeLock();
+        try {
+            long size = getSaveSize();
+            if (size > capacity) {
+                return size;
+            }
+            saveLocked(addr);
+            return size;
+        } finally {
+            writeLock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Writes all chunks to given address. Caller must hold write lock.
+     * @param addr Address where to write.
+     */
+    private void saveLocked(@Pointer long addr) {
+        int count = getChunkCount();
         for (int i = 0; i < count; i++) {
+            long chunkAddr = chunkAddrs.get(i);
+            int length = chunkAddr != 0 ? chunkLengths.get(i) : 0;
+            
+            // Write metadata
+            mem.writeByte(addr, getChunkType(i));
+            mem.writeInt(addr + 1, length);
+            addr += 5; // To actual chunk data
+            
+            if (length > 0) {
+                mem.copyMemory(chunkAddr, addr, length);
+                addr += length;
+            }
         }
         
         // Make sure no loads are reordered before writing this has been completely done
@@ -293,16 +1020,110 @@ public class ChunkBuffer {
         VarHandle.fullFence();
     }
     
+    /**
+     * Saves all chunks to given file channel, in format that
+     * {@link #load(long, int)} expects. Data is streamed through given
+     * buffer, so no memory is allocated for whole save image. Each chunk
+     * is copied while writers wait, and written after they may continue.
+     * @param channel File channel, open for writing.
+     * @param position Where in the file to write.
+     * @param scratch Buffer for streaming, preferably direct. Should be
+     * reused between saves. Must have capacity of at least 8 bytes.
+     * @return How many bytes were written.
+     * @throws IOException When writing fails.
+     */
+    public long save(FileChannel channel, long position, ByteBuffer scratch) throws IOException {
+        if (scratch.capacity() < 8) {
+            throw new IllegalArgumentException("scratch buffer too small");
+        }
+        scratch.clear();
+        scratch.order(ByteOrder.nativeOrder()); // Same as load() reads with
+        
+        long pos = position;
+        int count = getChunkCount();
+        for (int i = 0; i < count; i++) {
+            ChunkRecord record = copyChunk(i);
+            long chunkAddr = record.getAddress();
+            int length = record.getLength();
+            try {
+                // Write metadata
+                if (scratch.remaining() < 5) {
+                    pos += flush(channel, pos, scratch);
+                }
+                scratch.put(record.getType());
+                scratch.putInt(length);
+                
+                // Copy chunk data, mostly 8 bytes at time
+                long offset = 0;
+                while (offset < length) {
+                    if (scratch.remaining() < 8) {
+                        pos += flush(channel, pos, scratch);
+                    }
+                    if (length - offset >= 8) {
+                        scratch.putLong(mem.readLong(chunkAddr + offset));
+                        offset += 8;
+                    } else {
+                        scratch.put(mem.readByte(chunkAddr + offset));
+                        offset++;
+                    }
+                }
+            } finally {
+                if (chunkAddr != 0) {
+                    mem.freeMemory(chunkAddr, length);
+                }
+            }
+        }
+        pos += flush(channel, pos, scratch);
+        
+        return pos - position;
+    }
+    
+    /**
+     * Writes contents of scratch buffer to a channel and clears it.
+     * @return How many bytes were written.
+     */
+    private static long flush(FileChannel channel, long position, ByteBuffer scratch) throws IOException {
+        scratch.flip();
+        long written = 0;
+        while (scratch.hasRemaining()) {
+            written += channel.write(scratch, position + written);
+        }
+        scratch.clear();
+        return written;
+    }
+    
     /**
      * Unloads all chunks and metadata. Using this buffer while it is unloading
      * or after it has been unloaded will probably crash your JVM.
      */
     public void unload() {
-        int freed = 0;
-        int queueMemUsed = 2 * 8 * queueSize;
+        long freed = 0;
+        int queueMemUsed = staticDataLength;
         
-        // Free chunk data
-        int count = chunkCount.get();
+        // Free chunk data; backing allocator may recycle it
+        int count = getChunkCount();
+        for (int i = 0; i < count; i++) {
+            long addr = chunkAddrs.getAndSet(i, 0);
+            if (addr != 0 && !isMapped(addr)) {
+                int length = chunkLengths.get(i);
+                backingAllocator.free(addr, length); // No-op for arenas
+                freed += accountedSize(length);
+            }
+        }
+        if (arena != null) { // Free all chunk memory in one go; arena reports it
+            arena.release();
+        }
+        
+        // Unmap file that chunks were loaded from
+        long mapped = mappedAddr;
+        if (mapped != 0) {
+            mappedAddr = 0;
+            try {
+                OS.unmap(mapped, mappedLength);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         
         // Free static data region
         mem.freeMemory(changeQueues, queueMemUsed);
@@ -311,13 +1132,60 @@ public class ChunkBuffer {
         memListener.onFree(freed); // Notify memory listener once for whole unload
     }
 
-    public int getMemorySize() {
-        return getContentSize() + staticDataLength;
+    /**
+     * Gets how much memory chunk data of given length is accounted for
+     * by this buffer.
+     * @param length Length of chunk data.
+     * @return Accounted memory in bytes.
+     */
+    private long accountedSize(long length) {
+        if (arena != null) { // Arena reports its regions instead
+            return 0;
+        }
+        return slab != null ? slab.blockSize(length) : length;
+    }
+    
+    /**
+     * Gets how much memory unloading this buffer would free.
+     * @return Memory size in bytes.
+     */
+    public long getMemorySize() {
+        long size = staticDataLength;
+        if (arena != null) {
+            size += arena.getReservedMemory();
+        }
+        int count = getChunkCount();
+        for (int i = 0; i < count; i++) {
+            long addr = chunkAddrs.get(i);
+            if (addr != 0 && !isMapped(addr)) {
+                size += accountedSize(chunkLengths.get(i));
+            }
+        }
+        return size;
     }
 
     public int getId() {
         return bufferId;
     }
+    
+    /**
+     * Marks this buffer as needed now. Cheap enough to call whenever buffer
+     * is used; stamp is only written when clock has advanced.
+     */
+    public void touch() {
+        long now = System.currentTimeMillis();
+        if (lastNeeded != now) {
+            lastNeeded = now;
+        }
+    }
+    
+    /**
+     * Gets when this buffer was last needed.
+     * @return Time in milliseconds.
+     */
+    public long getLastNeeded() {
+        return lastNeeded;
+    }
 
     public Allocator getAllocator() {
         return allocator;
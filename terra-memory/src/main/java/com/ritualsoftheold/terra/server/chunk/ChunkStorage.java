@@ -1,11 +1,22 @@
 package com.ritualsoftheold.terra.server.chunk;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import com.ritualsoftheold.terra.core.materials.Registry;
+import com.ritualsoftheold.terra.server.MarkerPositions;
+import com.ritualsoftheold.terra.server.io.ChangeJournal;
+import com.ritualsoftheold.terra.server.io.ChunkRecord;
+import com.ritualsoftheold.terra.server.io.RegionStorage;
+
+import net.openhft.chronicle.core.OS;
 
 /**
  * Manages all chunks of a single world using chunk buffers.
@@ -27,6 +38,25 @@ public class ChunkStorage {
      */
     private final AtomicIntegerArray userCounts;
     
+    /**
+     * Loading futures of buffers. Set when a buffer is created and cleared
+     * when it is unloaded.
+     */
+    private final AtomicReferenceArray<CompletableFuture<ChunkBuffer>> loads;
+    
+    /**
+     * Unloading futures of buffers. Loading waits for previous unload, so
+     * that it does not read chunks before they have been saved.
+     */
+    private final AtomicReferenceArray<CompletableFuture<Void>> unloads;
+    
+    /**
+     * Buffers that are queued for unloading, but unloading has not yet
+     * started. Loading takes them back instead of reading from disk.
+     * Guarded by this.
+     */
+    private final AtomicReferenceArray<ChunkBuffer> pendingUnloads;
+    
     /**
      * Creates chunk buffers.
      */
@@ -38,12 +68,84 @@ public class ChunkStorage {
     
     private final Executor executor;
     
+    /**
+     * Where chunks are saved, keyed by full chunk ids. May be null, in which
+     * case nothing is persisted.
+     */
+    private final RegionStorage regionStorage;
+    
+    /**
+     * Journal where chunk changes are recorded before they are applied.
+     * May be null.
+     */
+    private volatile ChangeJournal journal;
+    
+    /**
+     * Creates block buffers when queued changes must be flushed before
+     * a buffer is unloaded. May be null.
+     */
+    private volatile ChunkBuffer.TargetFactory flushTargets;
+    
+    /**
+     * Where positions of new chunks are recorded, so that load markers
+     * can pin their buffers. May be null.
+     */
+    private volatile MarkerPositions markerPositions;
+    
+    /**
+     * Number of flushes in progress. Changes they have drained are not
+     * yet in chunk data.
+     */
+    private final AtomicInteger flushing;
+    
+    /**
+     * Number of unloads that have failed; their buffers were put back with
+     * unsaved changes.
+     */
+    private final AtomicLong unloadFailures;
+    
     public ChunkStorage(Registry registry, ChunkBuffer.Builder bufferBuilder, int maxBuffers, Executor executor) {
+        this(registry, bufferBuilder, maxBuffers, executor, null);
+    }
+    
+    /**
+     * Creates a chunk storage which persists chunks to given region storage.
+     * Region storage should use same executor as this.
+     * @param registry Material registry.
+     * @param bufferBuilder Creates chunk buffers.
+     * @param maxBuffers Maximum amount of chunk buffers.
+     * @param executor Executor for loading and unloading.
+     * @param regionStorage Region storage, or null.
+     */
+    public ChunkStorage(Registry registry, ChunkBuffer.Builder bufferBuilder, int maxBuffers, Executor executor, RegionStorage regionStorage) {
         this.registry = registry;
         this.bufferBuilder = bufferBuilder;
         this.buffers = new AtomicReferenceArray<>(maxBuffers);
         this.userCounts = new AtomicIntegerArray(maxBuffers);
+        this.loads = new AtomicReferenceArray<>(maxBuffers);
+        this.unloads = new AtomicReferenceArray<>(maxBuffers);
+        this.pendingUnloads = new AtomicReferenceArray<>(maxBuffers);
         this.executor = executor;
+        this.regionStorage = regionStorage;
+        this.flushing = new AtomicInteger();
+        this.unloadFailures = new AtomicLong();
+    }
+    
+    /**
+     * Creates a new chunk at given position. If marker positions have been
+     * set, the position is recorded there.
+     * @param x Chunk center X.
+     * @param y Chunk center Y.
+     * @param z Chunk center Z.
+     * @return Full id of the chunk.
+     */
+    public int newChunk(float x, float y, float z) {
+        int id = newChunk();
+        MarkerPositions positions = markerPositions;
+        if (positions != null) {
+            positions.recordChunk(this, id, x, y, z);
+        }
+        return id;
     }
     
     public int newChunk() {
@@ -83,22 +185,130 @@ public class ChunkStorage {
     }
 
     /**
-     * Loads the chunk buffer with given index.
+     * Loads the chunk buffer with given index, blocking until it is ready.
      * @param index Index for buffer.
      * @return The buffer.
      */
     private ChunkBuffer loadBuffer(int index) {
-        boolean success = createBuffer(index);
-        if (!success) {
+        return loadBufferAsync(index).join();
+    }
+    
+    /**
+     * Loads the chunk buffer with given index. If it is already loaded or
+     * being loaded, that is reused. Saved chunks are read from region
+     * storage on executor of this storage; calling thread never blocks on
+     * disk.
+     * @param index Index for buffer.
+     * @return Future that completes when the buffer is ready.
+     */
+    private CompletableFuture<ChunkBuffer> loadBufferAsync(int index) {
+        CompletableFuture<ChunkBuffer> future = loads.get(index);
+        if (future != null) {
+            return future;
+        }
+        
+        future = reclaimBuffer(index);
+        if (future != null) { // Unloading had not started, buffer is back
+            return future;
+        }
+        
+        CompletableFuture<Void> unload = unloads.get(index);
+        if (unload != null && !unload.isDone()) {
+            // Until it is saved, disk has stale data; if saving fails, old buffer is put back
+            return unload.handle((v, e) -> null).thenCompose(v -> loadBufferAsync(index));
+        }
+        
+        future = new CompletableFuture<>();
+        if (!createBuffer(index, future)) {
             // Someone else created the buffer
-            ChunkBuffer buf = buffers.get(index);
-            buf.waitLoading();
-            return buf;
+            return loads.get(index);
         }
-
+        
         ChunkBuffer buf = buffers.get(index);
-        buf.loadingReady(); // We're done, other threads can access the buffer now
-        return buf;
+        if (regionStorage == null) { // Nothing to read
+            buf.loadingReady(); // We're done, other threads can access the buffer now
+            future.complete(buf);
+            return future;
+        }
+        
+        CompletableFuture<ChunkBuffer> result = future;
+        readSaved(buf).whenComplete((v, e) -> {
+            if (e != null) { // Forget the buffer, so that loading may be retried
+                buffers.compareAndSet(index, buf, null);
+                loads.compareAndSet(index, result, null);
+                buf.unload();
+                result.completeExceptionally(e);
+            } else {
+                buf.loadingReady();
+                result.complete(buf);
+            }
+        });
+        return future;
+    }
+    
+    /**
+     * Reads saved chunks of a buffer from region storage. Chunks keep their
+     * indices; gaps are filled with empty chunks.
+     * @param buf Chunk buffer, which must not be ready yet.
+     * @return Future that completes when chunks have been read.
+     */
+    private CompletableFuture<Void> readSaved(ChunkBuffer buf) {
+        int first = buf.getId() << 16;
+        return regionStorage.findSaved(first, bufferBuilder.maxChunks()).thenCompose(keys -> {
+            @SuppressWarnings("unchecked")
+            CompletableFuture<ChunkRecord>[] reads = new CompletableFuture[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                reads[i] = regionStorage.read(keys[i], buf.getAllocator());
+            }
+            
+            return CompletableFuture.allOf(reads).thenRun(() -> {
+                for (int i = 0; i < keys.length; i++) {
+                    int index = (int) (keys[i] - first);
+                    while (buf.getChunkCount() <= index) {
+                        buf.newChunk();
+                    }
+                    
+                    ChunkRecord record = reads[i].join();
+                    reads[i] = null; // Buffer owns it now
+                    if (record != null) {
+                        buf.setChunk(index, record.getType(), record.getAddress(), record.getLength());
+                    }
+                    buf.clearDirty(index); // Same as on disk
+                }
+            }).whenComplete((v, e) -> {
+                if (e != null) { // Unloading the buffer frees only what it owns
+                    for (CompletableFuture<ChunkRecord> read : reads) {
+                        if (read != null && !read.isCompletedExceptionally()) {
+                            ChunkRecord record = read.join();
+                            if (record != null && record.getAddress() != 0) {
+                                buf.getAllocator().free(record.getAddress(), record.getLength());
+                            }
+                        }
+                    }
+                }
+            });
+        });
+    }
+    
+    /**
+     * Takes back a buffer that is queued for unloading, if unloading has
+     * not started yet.
+     * @param index Buffer index.
+     * @return Load future of the buffer, or null if there was nothing to
+     * take back.
+     */
+    private synchronized CompletableFuture<ChunkBuffer> reclaimBuffer(int index) {
+        if (buffers.get(index) != null) {
+            return null;
+        }
+        ChunkBuffer pending = pendingUnloads.getAndSet(index, null);
+        if (pending == null) {
+            return null;
+        }
+        CompletableFuture<ChunkBuffer> future = CompletableFuture.completedFuture(pending);
+        buffers.set(index, pending);
+        loads.set(index, future);
+        return future;
     }
     
     /**
@@ -106,15 +316,17 @@ public class ChunkStorage {
      * operation is synchronous to prevent creation of conflicting chunk
      * buffers. If it returns false, someone else created the buffer.
      * @param index Index for new buffer.
+     * @param future Future for loading of new buffer.
      * @return If creation succeeded.
      */
-    private synchronized boolean createBuffer(int index) {
-        if (buffers.get(index) != null) { // Check if already created
+    private synchronized boolean createBuffer(int index, CompletableFuture<ChunkBuffer> future) {
+        if (buffers.get(index) != null || pendingUnloads.get(index) != null) { // Check if already created
             return false;
         }
         
         // Create buffer
         buffers.set(index, bufferBuilder.build(this, index));
+        loads.set(index, future);
         
         return true;
     }
@@ -141,13 +353,29 @@ public class ChunkStorage {
      */
     public ChunkBuffer getOrLoadBuffer(int index) {
         ChunkBuffer buf = buffers.get(index); // Does OOB check
-        if (buf == null) { // Not available, load it
-            loadBuffer(index);
-            buf = buffers.get(index);
+        if (buf == null || !buf.isReady()) {
+            buf = loadBuffer(index);
         }
-        buf.waitLoading();
+        buf.touch();
         return buf;
     }
+    
+    /**
+     * Gets or loads a chunk buffer without blocking. Only for internal usage.
+     * @param index Buffer index.
+     * @return Future that completes when the buffer is ready.
+     */
+    public CompletableFuture<ChunkBuffer> getOrLoadBufferAsync(int index) {
+        ChunkBuffer buf = buffers.get(index); // Does OOB check
+        if (buf != null && buf.isReady()) {
+            buf.touch();
+            return CompletableFuture.completedFuture(buf);
+        }
+        return loadBufferAsync(index).thenApply(loaded -> {
+            loaded.touch();
+            return loaded;
+        });
+    }
 
     /**
      * Makes sure that a chunk with given id is loaded. It may be empty, though!
@@ -172,6 +400,89 @@ public class ChunkStorage {
         getOrLoadBuffer(bufIndex).waitChunkReady(chunkId & 0xffff);
     }
     
+    /**
+     * Makes sure that a chunk with given id is loaded without blocking
+     * calling thread.
+     * @param chunkId Full chunk id.
+     * @return Future that completes when the chunk is loaded.
+     * @see #ensureLoaded(int)
+     */
+    public CompletableFuture<Void> ensureLoadedAsync(int chunkId) {
+        int bufIndex = chunkId >>> 16;
+        return getOrLoadBufferAsync(bufIndex).thenAccept(buf -> buf.waitChunkReady(chunkId & 0xffff));
+    }
+    
+    /**
+     * Makes sure that a chunk with given id is loaded and keeps it loaded,
+     * without blocking calling thread. If loading fails, buffer is not kept
+     * loaded.
+     * @param chunkId Full chunk id.
+     * @return Future that completes when the chunk is loaded.
+     * @see #ensureAndKeepLoaded(int)
+     */
+    public CompletableFuture<Void> ensureAndKeepLoadedAsync(int chunkId) {
+        int bufIndex = chunkId >>> 16;
+        markUsed(bufIndex);
+        
+        return ensureLoadedAsync(chunkId).whenComplete((v, e) -> {
+            if (e != null) {
+                markUnused(bufIndex);
+            }
+        });
+    }
+    
+    /**
+     * Queues a change to a chunk, loading its buffer if needed.
+     * @param chunkId Full chunk id.
+     * @param entry Change entry.
+     * @return If the change was queued. False means that change queue of
+     * the chunk is full.
+     * @see ChunkBuffer#enqueueChange(int, long)
+     */
+    public boolean enqueueChange(int chunkId, long entry) {
+        int bufIndex = chunkId >>> 16;
+        markUsed(bufIndex); // Unloading must not free the queue while we write to it
+        try {
+            return getOrLoadBuffer(bufIndex).enqueueChange(chunkId & 0xffff, entry);
+        } finally {
+            markUnused(bufIndex);
+        }
+    }
+    
+    /**
+     * Applies queued changes of a chunk to its data.
+     * @param chunkId Full chunk id.
+     * @param targets Creates block buffer over data of the chunk.
+     * @return How many blocks were written.
+     * @see ChunkBuffer#flushChanges(int, ChunkBuffer.TargetFactory)
+     */
+    public int flushChanges(int chunkId, ChunkBuffer.TargetFactory targets) {
+        int bufIndex = chunkId >>> 16;
+        markUsed(bufIndex); // Keep chunk data alive while we write it
+        try {
+            return getOrLoadBuffer(bufIndex).flushChanges(chunkId & 0xffff, targets);
+        } finally {
+            markUnused(bufIndex);
+        }
+    }
+    
+    /**
+     * Replays a change journal, queuing all changes in it again. This must
+     * be done before the journal is set for this storage. If a change queue
+     * fills up, it is flushed.
+     * @param journal Change journal.
+     * @param targets Creates block buffers for chunks that need flushing.
+     * @return How many changes were replayed.
+     * @throws IOException When reading journal fails.
+     */
+    public int replayJournal(ChangeJournal journal, ChunkBuffer.TargetFactory targets) throws IOException {
+        return journal.replay((chunkId, entry) -> {
+            while (!enqueueChange(chunkId, entry)) {
+                flushChanges(chunkId, targets);
+            }
+        });
+    }
+    
     /**
      * Creates a managed wrapper for a chunk with given id using given material
      * registry. Chunk must be closed once it is no longer used. Storing
@@ -183,7 +494,19 @@ public class ChunkStorage {
         return buffers;
     }
     
+    /**
+     * Marks a buffer used, so that it is not unloaded. A buffer that is
+     * queued for unloading but has not started unloading yet is kept. Get
+     * the buffer only after marking it; one that was already unloading is
+     * then loaded again.
+     * @param index Buffer index.
+     * @return Use count after this.
+     */
     public int markUsed(int index) {
+        ChunkBuffer buf = buffers.get(index);
+        if (buf != null) {
+            buf.touch();
+        }
         return userCounts.incrementAndGet(index);
     }
     
@@ -195,22 +518,316 @@ public class ChunkStorage {
         return userCounts.get(index);
     }
 
-    public void unloadBuffer(int index, boolean saveFirst) {
-        CompletableFuture.runAsync(() -> {
-            ChunkBuffer buf = buffers.getAndSet(index, null); // Get buffer, set it to null
-            // Once used mark gets to zero, we can unload
-            while (true) { // Spin loop until used < 1
-                Thread.onSpinWait();
-                int used = getUsedCount(index);
-                if (used < 1) {
-                    break;
-                }
+    /**
+     * Saves all chunks of a loaded buffer to region storage. Chunks are
+     * copied first, so buffer may be modified while they are written.
+     * @param index Buffer index.
+     * @return Future that completes when all chunks have been written.
+     */
+    public CompletableFuture<Void> saveBuffer(int index) {
+        ChunkBuffer buf = buffers.get(index);
+        if (buf == null || regionStorage == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        markUsed(index); // Don't let it unload while we copy
+        try {
+            if (buffers.get(index) != buf) { // Unloaded meanwhile, which saved it
+                return CompletableFuture.completedFuture(null);
+            }
+            return saveBuffer(buf, true);
+        } finally {
+            markUnused(index);
+        }
+    }
+    
+    /**
+     * Saves all chunks of a buffer to region storage.
+     * @param buf Chunk buffer.
+     * @param copy If chunks should be copied before they are written.
+     * Without copying, nobody may modify or unload the buffer until
+     * returned future completes.
+     * @return Future that completes when all chunks have been written.
+     */
+    private CompletableFuture<Void> saveBuffer(ChunkBuffer buf, boolean copy) {
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        int count = buf.getChunkCount();
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            buf.clearDirty(index); // Before data is read, so later changes mark it again
+            ChunkRecord record;
+            if (copy) {
+                record = buf.copyChunk(i);
+            } else {
+                long addr = buf.getChunkAddress(i);
+                record = new ChunkRecord(buf.getChunkType(i), addr, addr != 0 ? buf.getChunkLength(i) : 0);
+            }
+            // Empty chunks are written too, so that their ids are not handed out again
+            writes.add(regionStorage.write(buf.getId() << 16 | i, record.getType(), record.getAddress(), record.getLength())
+                    .whenComplete((v, e) -> {
+                        if (copy && record.getAddress() != 0) {
+                            OS.memory().freeMemory(record.getAddress(), record.getLength());
+                        }
+                        if (e != null) {
+                            buf.markDirty(index); // Try again later
+                        }
+                    }));
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture[writes.size()]));
+    }
+
+    /**
+     * Unloads a chunk buffer if nobody uses it. If it is marked used or
+     * loaded again before unloading starts, it is kept loaded instead.
+     * @param index Buffer index.
+     * @param saveFirst If chunks should be saved to region storage before
+     * they are unloaded.
+     * @return Future that completes when buffer has been unloaded or
+     * unloading was cancelled.
+     */
+    public CompletableFuture<Void> unloadBuffer(int index, boolean saveFirst) {
+        CompletableFuture<Void> unload = new CompletableFuture<>();
+        ChunkBuffer buf;
+        synchronized (this) {
+            buf = buffers.get(index);
+            if (buf == null || pendingUnloads.get(index) != null) { // Nothing to do or already queued
+                unload.complete(null);
+                return unload;
             }
             
+            // Publish unload before buffer disappears, so loads cannot miss it
+            unloads.set(index, unload);
+            unload.whenComplete((v, e) -> unloads.compareAndSet(index, unload, null));
+            
+            // Loads take the buffer back until we start unloading
+            buffers.set(index, null);
+            loads.set(index, null);
+            pendingUnloads.set(index, buf);
+        }
+        
+        CompletableFuture.supplyAsync(() -> claimUnload(index, buf), executor).thenCompose(claimed -> {
+            if (!claimed) { // Buffer is still loaded, nothing to save
+                return CompletableFuture.completedFuture(false);
+            }
+            flushQueued(buf); // Queued changes would be lost otherwise
+            if (saveFirst && regionStorage != null) {
+                return saveBuffer(buf, false).thenApply(v -> true); // Nobody uses it anymore
+            }
+            return CompletableFuture.completedFuture(true);
+        }).thenAcceptAsync(claimed -> {
             // Finally, unload
-            buf.unload();
+            if (claimed) {
+                buf.unload();
+            }
             // And then buffer "wrapper" object is left for GC to claim
-        }, executor);
+        }, executor).whenComplete((v, e) -> {
+            if (e != null) {
+                // Saving failed; keep the buffer loaded rather than losing changes
+                // Loads wait for us, so nobody has taken the slot
+                synchronized (this) {
+                    buffers.set(index, buf);
+                    loads.set(index, CompletableFuture.completedFuture(buf));
+                }
+                unloadFailures.incrementAndGet();
+                unload.completeExceptionally(e);
+            } else {
+                unload.complete(null);
+            }
+        });
+        return unload;
+    }
+    
+    /**
+     * Applies all queued changes of a buffer that nobody uses anymore.
+     * @param buf Chunk buffer.
+     * @throws IllegalStateException If there are changes, but no flush
+     * targets have been set.
+     */
+    private void flushQueued(ChunkBuffer buf) {
+        int count = buf.getChunkCount();
+        for (int i = 0; i < count; i++) {
+            if (!buf.hasQueuedChanges(i)) {
+                continue;
+            }
+            ChunkBuffer.TargetFactory targets = flushTargets;
+            if (targets == null) {
+                throw new IllegalStateException("buffer has queued changes, but no flush targets are set");
+            }
+            buf.flushChanges(i, targets);
+        }
+    }
+    
+    void beginFlush() {
+        flushing.incrementAndGet();
+    }
+    
+    void endFlush() {
+        flushing.decrementAndGet();
+    }
+    
+    /**
+     * Checks if all changes that have been queued to loaded buffers so far
+     * have been applied to chunk data. Changes that are queued meanwhile
+     * may make this return false even though older ones were applied.
+     * @return If nothing is queued or being flushed.
+     */
+    boolean changesApplied() {
+        for (int i = 0; i < buffers.length(); i++) {
+            ChunkBuffer buf = buffers.get(i);
+            if (buf == null) {
+                continue;
+            }
+            int count = buf.getChunkCount();
+            for (int j = 0; j < count; j++) {
+                if (buf.hasQueuedChanges(j)) {
+                    return false;
+                }
+            }
+        }
+        // Flushes drain before they apply, so check them after the queues
+        return flushing.get() == 0;
+    }
+    
+    /**
+     * Gets how many unloads have failed so far.
+     * @return Number of failed unloads.
+     */
+    long getUnloadFailures() {
+        return unloadFailures.get();
+    }
+    
+    /**
+     * Gets a future that completes when unloads that are currently in
+     * progress have completed.
+     * @return Future that completes exceptionally if any of them failed.
+     */
+    CompletableFuture<Void> awaitUnloads() {
+        List<CompletableFuture<Void>> inProgress = new ArrayList<>();
+        for (int i = 0; i < unloads.length(); i++) {
+            CompletableFuture<Void> unload = unloads.get(i);
+            if (unload != null) {
+                inProgress.add(unload);
+            }
+        }
+        return CompletableFuture.allOf(inProgress.toArray(new CompletableFuture[inProgress.size()]));
+    }
+    
+    /**
+     * Decides if a buffer that is queued for unloading is really unloaded.
+     * If someone started using it meanwhile, it is put back instead; we
+     * must not wait for them, because they might be waiting for us.
+     * @param index Buffer index.
+     * @param buf Buffer that is queued for unloading.
+     * @return If caller should unload the buffer.
+     */
+    private synchronized boolean claimUnload(int index, ChunkBuffer buf) {
+        if (!pendingUnloads.compareAndSet(index, buf, null)) {
+            return false; // A load took it back
+        }
+        if (getUsedCount(index) > 0) { // Marked used before it was hidden
+            buffers.set(index, buf);
+            loads.set(index, CompletableFuture.completedFuture(buf));
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Takes a snapshot of all loaded chunk buffers. Writers are blocked only
+     * while snapshot is installed; chunks are copied lazily when they are
+     * modified. Snapshot must be closed after use.
+     * @return Snapshot.
+     */
+    public synchronized StorageSnapshot snapshot() {
+        List<BufferSnapshot> snaps = new ArrayList<>();
+        List<ChunkBuffer> locked = new ArrayList<>();
+        long[] stamps = new long[buffers.length()];
+        try {
+            for (int i = 0; i < buffers.length(); i++) {
+                ChunkBuffer buf = buffers.get(i);
+                if (buf == null || !buf.isReady()) {
+                    continue;
+                }
+                markUsed(i); // Keep loaded until snapshot is closed
+                if (buffers.get(i) != buf) { // Unloaded meanwhile
+                    markUnused(i);
+                    continue;
+                }
+                
+                // Ongoing writes finish before we continue
+                stamps[i] = buf.getWriteLock().writeLock();
+                locked.add(buf);
+                snaps.add(new BufferSnapshot(buf));
+            }
+            
+            // All buffers locked; this is the point in time of snapshot
+            for (BufferSnapshot snap : snaps) {
+                snap.getBuffer().setSnapshot(snap);
+            }
+        } finally {
+            for (ChunkBuffer buf : locked) {
+                buf.getWriteLock().unlockWrite(stamps[buf.getId()]);
+            }
+        }
+        return new StorageSnapshot(this, snaps);
+    }
+    
+    /**
+     * Removes a snapshot from buffers.
+     * @param snaps Snapshots of buffers.
+     */
+    void endSnapshot(List<BufferSnapshot> snaps) {
+        for (BufferSnapshot snap : snaps) {
+            ChunkBuffer buf = snap.getBuffer();
+            long stamp = buf.getWriteLock().writeLock();
+            try {
+                buf.setSnapshot(null);
+            } finally {
+                buf.getWriteLock().unlockWrite(stamp);
+            }
+            snap.release();
+            markUnused(buf.getId());
+        }
+    }
+    
+    /**
+     * Gets region storage where chunks are saved.
+     * @return Region storage, or null if chunks are not persisted.
+     */
+    public RegionStorage getRegionStorage() {
+        return regionStorage;
+    }
+    
+    /**
+     * Sets journal where changes to chunks are recorded. Existing journal
+     * should be replayed before this is called.
+     * @param journal Change journal, or null to disable journaling.
+     */
+    public void setChangeJournal(ChangeJournal journal) {
+        this.journal = journal;
+    }
+    
+    public ChangeJournal getChangeJournal() {
+        return journal;
+    }
+    
+    /**
+     * Sets where positions of chunks that are created with
+     * {@link #newChunk(float, float, float)} are recorded.
+     * @param positions Marker positions, or null.
+     */
+    public void setMarkerPositions(MarkerPositions positions) {
+        this.markerPositions = positions;
+    }
+    
+    /**
+     * Sets how block buffers are created when queued changes are flushed
+     * before unloading. Without this, buffers with queued changes are
+     * kept loaded.
+     * @param targets Target factory, or null.
+     */
+    public void setFlushTargets(ChunkBuffer.TargetFactory targets) {
+        this.flushTargets = targets;
     }
 
     /**
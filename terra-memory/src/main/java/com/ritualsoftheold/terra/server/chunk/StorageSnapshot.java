@@ -0,0 +1,118 @@
+package com.ritualsoftheold.terra.server.chunk;
+
+import java.util.List;
+
+import com.ritualsoftheold.terra.server.Pointer;
+import com.ritualsoftheold.terra.server.io.ChunkRecord;
+import com.ritualsoftheold.terra.server.io.RegionStorage;
+
+import net.openhft.chronicle.core.Memory;
+import net.openhft.chronicle.core.OS;
+
+/**
+ * Consistent view of all chunk buffers that were loaded when it was taken.
+ * Writers are not stopped; they copy chunks that the snapshot has not yet
+ * read before modifying them. Buffers that are part of a snapshot are not
+ * unloaded until it is closed.
+ * 
+ * <p>Chunks of buffers that were not loaded are already in region storage,
+ * and are not part of snapshots.
+ *
+ */
+public class StorageSnapshot implements AutoCloseable {
+    
+    private static final Memory mem = OS.memory();
+    
+    /**
+     * Receives chunks of a snapshot.
+     *
+     */
+    @FunctionalInterface
+    public interface ChunkConsumer {
+        
+        /**
+         * Accepts a chunk. Data is valid only until this returns.
+         * @param chunkId Full chunk id.
+         * @param type Chunk type.
+         * @param addr Address of data, or 0 if chunk has no data.
+         * @param length Length of data.
+         */
+        void accept(int chunkId, byte type, @Pointer long addr, int length);
+    }
+    
+    private final ChunkStorage storage;
+    
+    private final List<BufferSnapshot> buffers;
+    
+    private boolean closed;
+    
+    StorageSnapshot(ChunkStorage storage, List<BufferSnapshot> buffers) {
+        this.storage = storage;
+        this.buffers = buffers;
+    }
+    
+    /**
+     * Reads all chunks of this snapshot. Can be called only once.
+     * @param consumer Consumer for chunks.
+     */
+    public void forEachChunk(ChunkConsumer consumer) {
+        if (closed) {
+            throw new IllegalStateException("snapshot is closed");
+        }
+        for (BufferSnapshot snap : buffers) {
+            for (int i = 0; i < snap.getCount(); i++) {
+                snap.read(i, consumer);
+            }
+        }
+    }
+    
+    /**
+     * Writes all chunks of this snapshot to given region storage, blocking
+     * until they have been written. Each chunk is copied before it is
+     * written, so that writers need not wait for the disk.
+     * @param regionStorage Region storage.
+     */
+    public void saveTo(RegionStorage regionStorage) {
+        if (closed) {
+            throw new IllegalStateException("snapshot is closed");
+        }
+        ChunkRecord[] copy = new ChunkRecord[1];
+        int[] copyId = new int[1];
+        ChunkConsumer copier = (chunkId, type, addr, length) -> {
+            long data = 0;
+            if (length > 0) {
+                data = mem.allocate(length);
+                mem.copyMemory(addr, data, length);
+            }
+            copy[0] = new ChunkRecord(type, data, length);
+            copyId[0] = chunkId;
+        };
+        
+        for (BufferSnapshot snap : buffers) {
+            for (int i = 0; i < snap.getCount(); i++) {
+                snap.read(i, copier); // Writers of this chunk wait only for copying
+                ChunkRecord record = copy[0];
+                try {
+                    regionStorage.write(copyId[0], record.getType(), record.getAddress(), record.getLength()).join();
+                } finally {
+                    if (record.getAddress() != 0) {
+                        mem.freeMemory(record.getAddress(), record.getLength());
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Ends this snapshot, releasing chunk copies and letting buffers be
+     * unloaded again.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        storage.endSnapshot(buffers);
+    }
+}
@@ -3,7 +3,9 @@ package com.ritualsoftheold.terra.server.chunk;
 import com.ritualsoftheold.terra.core.BlockBuffer;
 import com.ritualsoftheold.terra.core.materials.Registry;
 import com.ritualsoftheold.terra.server.MemoryAllocator;
+import com.ritualsoftheold.terra.server.data.BufferWithFormat;
 import com.ritualsoftheold.terra.server.data.TypeSelector;
+import com.ritualsoftheold.terra.server.data.WorldDataFormat;
 
 /**
  * Wraps a critical block buffer so that if there are too many materials,
@@ -75,4 +77,53 @@ public class WrappedCriticalBuffer {
     public void writeRef(Object ref) {
         wrapped.writeRef(ref);
     }
+    
+    /**
+     * Writes multiple blocks. Format is checked once for whole batch: if
+     * the buffer runs out of materials, it is promoted to next format and
+     * writing continues from where it failed.
+     * @param indices Block indices.
+     * @param refs Materials for blocks.
+     * @param count How many blocks to write.
+     */
+    public void writeBatch(int[] indices, Object[] refs, int count) {
+        int i = 0;
+        boolean promoted = false;
+        while (true) {
+            try {
+                for (; i < count; i++) {
+                    wrapped.seek(indices[i]);
+                    wrapped.writeRef(refs[i]);
+                }
+                return;
+            } catch (TooManyMaterialsException e) {
+                if (promoted) { // Even next format could not fit them
+                    throw e;
+                }
+                promote();
+                promoted = true;
+            }
+        }
+    }
+    
+    /**
+     * Converts underlying buffer to next chunk format.
+     */
+    private void promote() {
+        if (!(wrapped instanceof BufferWithFormat)) {
+            throw new TooManyMaterialsException(); // Can't know what to promote to
+        }
+        BufferWithFormat old = (BufferWithFormat) wrapped;
+        WorldDataFormat next = typeSelector.nextFormat(old.getDataFormat());
+        wrapped = next.convert(old, allocator);
+        old.close();
+    }
+    
+    /**
+     * Gets the underlying buffer. It changes when format is promoted.
+     * @return Block buffer.
+     */
+    public BlockBuffer getWrapped() {
+        return wrapped;
+    }
 }
@@ -1,5 +1,7 @@
 package com.ritualsoftheold.terra.server.data;
 
+import com.ritualsoftheold.terra.server.MemoryAllocator;
+
 /**
  * Data format for chunk or octree world data.
  *
@@ -7,4 +9,19 @@ package com.ritualsoftheold.terra.server.data;
 public interface WorldDataFormat {
     
     boolean isOctree();
+    
+    /**
+     * Gets chunk type that chunk buffers use for data in this format.
+     * @return Chunk type.
+     */
+    byte getChunkType();
+    
+    /**
+     * Creates a buffer in this format that contains same blocks as given
+     * buffer. Used when a chunk is promoted to another format.
+     * @param source Source buffer.
+     * @param allocator Allocator for data of new buffer.
+     * @return Buffer in this format.
+     */
+    BufferWithFormat convert(BufferWithFormat source, MemoryAllocator allocator);
 }
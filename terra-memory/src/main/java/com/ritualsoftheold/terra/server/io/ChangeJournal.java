@@ -0,0 +1,449 @@
+package com.ritualsoftheold.terra.server.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+/**
+ * Append-only journal of chunk change queue entries. Entries are buffered
+ * in memory until {@link #commit()} is called; commits that are requested
+ * while previous one is being written are grouped together, so that there
+ * is one fsync per group instead of one per entry.
+ * 
+ * <p>Appends are spread over striped buffers by chunk id, so producers of
+ * different chunks rarely contend. Entries of one chunk always go to same
+ * stripe and stay in order; order between chunks is not preserved.
+ * 
+ * <p>Each record is {@code [int chunkId][int checksum][long entry]}.
+ * A crash may leave a torn record at end of file; replaying stops there
+ * and cuts it off.
+ * 
+ * <p>Records are numbered in order they are in the file. Saving should start
+ * with {@link #mark()}, and once saved data is durable,
+ * {@link #checkpoint(long)} removes records before the mark.
+ *
+ */
+public class ChangeJournal implements Closeable {
+    
+    /**
+     * Handles entries when journal is replayed.
+     *
+     */
+    @FunctionalInterface
+    public interface EntryHandler {
+        
+        void accept(int chunkId, long entry);
+    }
+    
+    private static final int RECORD_SIZE = 16;
+    
+    private static final int READ_SIZE = RECORD_SIZE * 4096;
+    
+    private static final int STRIPE_SIZE = RECORD_SIZE * 256;
+    
+    /**
+     * Appended entries of some chunks.
+     *
+     */
+    private static class Stripe {
+        
+        /**
+         * Entries which have not been sealed yet. Guarded by this stripe.
+         */
+        private ByteBuffer pending;
+        
+        /**
+         * Buffer that was last written, reused for next batch. Guarded by
+         * this stripe.
+         */
+        private ByteBuffer spare;
+        
+        private Stripe() {
+            this.pending = ByteBuffer.allocateDirect(STRIPE_SIZE);
+        }
+    }
+    
+    private final Path file;
+    
+    /**
+     * Journal file. Replaced when a checkpoint rewrites it. Guarded by
+     * ioLock.
+     */
+    private FileChannel channel;
+    
+    /**
+     * Runs writes and fsyncs.
+     */
+    private final Executor executor;
+    
+    private final Stripe[] stripes;
+    
+    /**
+     * Batches which have been taken from stripes, in order they will be
+     * written. Guarded by this.
+     */
+    private final List<ByteBuffer> sealed;
+    
+    /**
+     * Stripes that sealed batches came from. Guarded by this.
+     */
+    private final List<Stripe> sealedFrom;
+    
+    /**
+     * Number of record after last sealed one. Guarded by this.
+     */
+    private long sealedEnd;
+    
+    /**
+     * Completes when sealed batches are durable. Guarded by this.
+     */
+    private CompletableFuture<Void> pendingCommit;
+    
+    /**
+     * Completes when batches that are being written are durable, or null.
+     * Guarded by this.
+     */
+    private CompletableFuture<Void> writingCommit;
+    
+    /**
+     * If a write is in progress on executor.
+     */
+    private boolean committing;
+    
+    /**
+     * Guards file position and truncation.
+     */
+    private final Object ioLock;
+    
+    /**
+     * Where next batch of records is written.
+     */
+    private long writePosition;
+    
+    /**
+     * Number of first record in the file. Guarded by ioLock.
+     */
+    private long firstRecord;
+    
+    /**
+     * Opens a journal, creating it if it does not exist. Existing journal
+     * should be replayed before new entries are appended.
+     * @param file Journal file.
+     * @param executor Executor for writes.
+     * @throws IOException When opening fails.
+     */
+    public ChangeJournal(Path file, Executor executor) throws IOException {
+        this.file = file;
+        this.channel = open(file);
+        this.executor = executor;
+        this.stripes = new Stripe[Runtime.getRuntime().availableProcessors() * 2];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.sealed = new ArrayList<>();
+        this.sealedFrom = new ArrayList<>();
+        this.pendingCommit = new CompletableFuture<>();
+        this.ioLock = new Object();
+        this.writePosition = channel.size() / RECORD_SIZE * RECORD_SIZE;
+        this.sealedEnd = writePosition / RECORD_SIZE;
+    }
+    
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    
+    /**
+     * Appends an entry. It will not be durable until it is committed.
+     * @param chunkId Full id of chunk.
+     * @param entry Change queue entry.
+     */
+    public void append(int chunkId, long entry) {
+        append(chunkId, entry, () -> 0);
+    }
+    
+    /**
+     * Reserves a place for an entry and appends it as one step, so that
+     * entries of a chunk are in the journal in same order as their places
+     * were reserved.
+     * @param chunkId Full id of chunk.
+     * @param entry Change queue entry.
+     * @param reservation Reserves a place for the entry, e.g. a change
+     * queue slot. Negative result means that there was no place, and the
+     * entry is not appended.
+     * @return Result of reservation.
+     */
+    public long append(int chunkId, long entry, LongSupplier reservation) {
+        Stripe stripe = stripes[Math.floorMod(chunkId ^ chunkId >>> 16, stripes.length)];
+        synchronized (stripe) {
+            long reserved = reservation.getAsLong();
+            if (reserved < 0) {
+                return reserved;
+            }
+            
+            ByteBuffer pending = stripe.pending;
+            if (pending.remaining() < RECORD_SIZE) { // Grow to fit more
+                ByteBuffer bigger = ByteBuffer.allocateDirect(pending.capacity() * 2);
+                pending.flip();
+                bigger.put(pending);
+                pending = bigger;
+                stripe.pending = bigger;
+            }
+            pending.putInt(chunkId).putInt(checksum(chunkId, entry)).putLong(entry);
+            return reserved;
+        }
+    }
+    
+    /**
+     * Marks current end of the journal. Call this before saving chunks;
+     * entries that were appended before it must be applied to chunks that
+     * are saved.
+     * @return Mark for {@link #checkpoint(long)}.
+     */
+    public synchronized long mark() {
+        seal(); // Later entries are written after these
+        return sealedEnd;
+    }
+    
+    /**
+     * Takes appended entries from all stripes, fixing their place in the
+     * file. Caller must hold lock of this.
+     */
+    private void seal() {
+        for (Stripe stripe : stripes) {
+            ByteBuffer batch;
+            synchronized (stripe) {
+                batch = stripe.pending;
+                if (batch.position() == 0) {
+                    continue; // Nothing appended
+                }
+                stripe.pending = stripe.spare != null ? stripe.spare : ByteBuffer.allocateDirect(STRIPE_SIZE);
+                stripe.spare = null;
+            }
+            sealed.add(batch);
+            sealedFrom.add(stripe);
+            sealedEnd += batch.position() / RECORD_SIZE;
+        }
+    }
+    
+    /**
+     * Commits all appended entries. If a commit is already being written,
+     * this will be grouped with other commits that are requested meanwhile.
+     * @return Future that completes when entries are durable.
+     */
+    public CompletableFuture<Void> commit() {
+        synchronized (this) {
+            seal();
+            if (sealed.isEmpty()) { // Everything is written or being written
+                return writingCommit != null ? writingCommit : CompletableFuture.completedFuture(null);
+            }
+            if (!committing) {
+                committing = true;
+                executor.execute(this::writeCommits);
+            }
+            return pendingCommit;
+        }
+    }
+    
+    /**
+     * Writes sealed batches until there are no more of them.
+     */
+    private void writeCommits() {
+        while (true) {
+            List<ByteBuffer> batches;
+            List<Stripe> from;
+            CompletableFuture<Void> done;
+            synchronized (this) {
+                if (sealed.isEmpty()) {
+                    committing = false;
+                    writingCommit = null;
+                    return;
+                }
+                
+                // Take batches; new ones are sealed while we write
+                batches = new ArrayList<>(sealed);
+                from = new ArrayList<>(sealedFrom);
+                sealed.clear();
+                sealedFrom.clear();
+                done = pendingCommit;
+                writingCommit = done;
+                pendingCommit = new CompletableFuture<>();
+            }
+            
+            IOException failure = null;
+            synchronized (ioLock) {
+                long start = writePosition;
+                try {
+                    for (ByteBuffer batch : batches) {
+                        batch.flip();
+                        while (batch.hasRemaining()) {
+                            writePosition += channel.write(batch, writePosition);
+                        }
+                    }
+                    channel.force(false); // Whole group is durable now
+                } catch (IOException e) {
+                    rollback(start, batches);
+                    failure = e;
+                }
+            }
+            if (failure == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(new UncheckedIOException(failure));
+            }
+            
+            // Give buffers back for reuse
+            for (int i = 0; i < batches.size(); i++) {
+                ByteBuffer batch = batches.get(i);
+                batch.clear();
+                Stripe stripe = from.get(i);
+                synchronized (stripe) {
+                    if (stripe.spare == null) {
+                        stripe.spare = batch;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Cuts off a group of batches that could not be written, so that
+     * later batches are not written after a partial record. Caller must
+     * hold ioLock.
+     * @param start Where the group started.
+     * @param batches Batches of the group.
+     */
+    private void rollback(long start, List<ByteBuffer> batches) {
+        try {
+            channel.truncate(start);
+        } catch (IOException e) {
+            // Next write goes to same place and overwrites what was written
+        }
+        writePosition = start;
+        
+        // Lost records had numbers; later ones keep theirs, so that
+        // earlier records look newer and are only kept longer
+        long lost = 0;
+        for (ByteBuffer batch : batches) {
+            lost += batch.limit() / RECORD_SIZE;
+        }
+        firstRecord += lost;
+    }
+    
+    /**
+     * Replays all valid entries in the journal. Torn record at end of file
+     * is cut off.
+     * @param handler Handler for entries.
+     * @return How many entries there were.
+     * @throws IOException When reading fails.
+     */
+    public int replay(EntryHandler handler) throws IOException {
+        synchronized (ioLock) {
+            ByteBuffer buf = ByteBuffer.allocate(READ_SIZE);
+            long position = 0;
+            int count = 0;
+            
+            outer: while (true) {
+                buf.clear();
+                int read = 0;
+                while (buf.hasRemaining()) {
+                    int n = channel.read(buf, position + read);
+                    if (n == -1) {
+                        break;
+                    }
+                    read += n;
+                }
+                buf.flip();
+                
+                while (buf.remaining() >= RECORD_SIZE) {
+                    int chunkId = buf.getInt();
+                    int checksum = buf.getInt();
+                    long entry = buf.getLong();
+                    if (checksum != checksum(chunkId, entry)) {
+                        break outer; // Torn or garbage record
+                    }
+                    handler.accept(chunkId, entry);
+                    position += RECORD_SIZE;
+                    count++;
+                }
+                if (read < READ_SIZE) {
+                    break; // Reached end of file
+                }
+            }
+            
+            channel.truncate(position);
+            writePosition = position;
+            synchronized (this) {
+                sealedEnd = firstRecord + count;
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * Removes entries that were appended before given mark. Call this only
+     * after chunks that those entries were applied to have been saved.
+     * Entries after the mark are kept; the journal is rewritten to a new
+     * file which replaces the old one atomically.
+     * @param mark Mark that was taken before saving.
+     * @throws IOException When rewriting fails.
+     */
+    public void checkpoint(long mark) throws IOException {
+        boolean written;
+        synchronized (ioLock) {
+            written = mark <= firstRecord + writePosition / RECORD_SIZE;
+        }
+        if (!written) { // Entries before mark must be in file before we cut them off
+            commit().join();
+        }
+        
+        synchronized (ioLock) {
+            long cut = (mark - firstRecord) * RECORD_SIZE;
+            if (cut <= 0) {
+                return; // Already removed
+            }
+            
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            long kept = writePosition - cut;
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long copied = 0;
+                while (copied < kept) {
+                    copied += channel.transferTo(cut + copied, kept - copied, out);
+                }
+                out.force(false);
+            }
+            
+            // Replace journal; a crash leaves either old or new file in place
+            channel.close();
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            channel = open(file);
+            writePosition = kept;
+            firstRecord = mark;
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        commit().join();
+        synchronized (ioLock) {
+            channel.close();
+        }
+    }
+    
+    private static int checksum(int chunkId, long entry) {
+        // Constant makes sure that zeroed records are not valid
+        long h = (entry ^ ((long) chunkId << 32 | 0x5eed)) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,45 @@
+package com.ritualsoftheold.terra.server.io;
+
+import com.ritualsoftheold.terra.server.Pointer;
+
+/**
+ * Chunk data that was read from disk.
+ *
+ */
+public class ChunkRecord {
+    
+    /**
+     * Chunk type.
+     */
+    private final byte type;
+    
+    /**
+     * Address of chunk data, or 0 if chunk has no data.
+     */
+    @Pointer
+    private final long address;
+    
+    /**
+     * Length of chunk data.
+     */
+    private final int length;
+    
+    public ChunkRecord(byte type, @Pointer long address, int length) {
+        this.type = type;
+        this.address = address;
+        this.length = length;
+    }
+    
+    public byte getType() {
+        return type;
+    }
+    
+    @Pointer
+    public long getAddress() {
+        return address;
+    }
+    
+    public int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,371 @@
+package com.ritualsoftheold.terra.server.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.ritualsoftheold.terra.server.MemoryAllocator;
+import com.ritualsoftheold.terra.server.Pointer;
+
+import net.openhft.chronicle.core.Memory;
+import net.openhft.chronicle.core.OS;
+
+/**
+ * A file which contains a fixed amount of chunk slots. File begins with
+ * a header that has one entry for each slot:
+ * {@code [long offset][int capacity][int length]}. Offset of 0 means that
+ * the slot is empty. Chunk records, {@code [byte type][payload]}, follow
+ * the header in no particular order.
+ * 
+ * <p>Records are never overwritten in place. A new record goes to free
+ * space or end of file, and is forced to disk before header entry is
+ * switched to it, so a crash leaves either old or new record readable.
+ * Space of old record is reused only after the switch has been forced
+ * to disk, too. All I/O is positional; reads may happen concurrently,
+ * writes are exclusive.
+ *
+ */
+class RegionFile implements Closeable {
+    
+    private static final Memory mem = OS.memory();
+    
+    /**
+     * Size of a header entry in bytes.
+     */
+    private static final int ENTRY_SIZE = 16;
+    
+    /**
+     * Scratch buffers for copying between offheap memory and files.
+     */
+    private static final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(() -> allocateScratch(4096));
+    
+    private final FileChannel channel;
+    
+    /**
+     * Header contents, cached in memory.
+     */
+    private final long[] offsets;
+    private final int[] capacities;
+    private final int[] lengths;
+    
+    /**
+     * Where next appended record will go.
+     */
+    private long end;
+    
+    /**
+     * Free space between records, capacities by offsets. Adjacent extents
+     * are merged. Guarded by write lock.
+     */
+    private final TreeMap<Long, Long> free;
+    
+    /**
+     * Space of records that were replaced, but whose header entries might
+     * not yet be on disk, as offset and capacity pairs. Guarded by write
+     * lock.
+     */
+    private final List<long[]> pendingFree;
+    
+    /**
+     * Reads acquire read lock; writes acquire write lock.
+     */
+    private final ReadWriteLock lock;
+    
+    /**
+     * Opens a region file, creating it if it does not exist.
+     * @param path Path to file.
+     * @param slots How many slots the file has.
+     * @throws IOException When opening fails.
+     */
+    RegionFile(Path path, int slots) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.offsets = new long[slots];
+        this.capacities = new int[slots];
+        this.lengths = new int[slots];
+        this.lock = new ReentrantReadWriteLock();
+        this.free = new TreeMap<>();
+        this.pendingFree = new ArrayList<>();
+        
+        int headerSize = slots * ENTRY_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        if (channel.size() < headerSize) { // New file, write empty header
+            writeFully(header, 0);
+        } else {
+            readFully(header, 0);
+            header.flip();
+            for (int i = 0; i < slots; i++) {
+                offsets[i] = header.getLong();
+                capacities[i] = header.getInt();
+                lengths[i] = header.getInt();
+            }
+        }
+        end = Math.max(channel.size(), headerSize);
+        findFreeSpace(headerSize);
+    }
+    
+    /**
+     * Finds gaps between records that header refers to.
+     * @param headerSize Size of header.
+     */
+    private void findFreeSpace(int headerSize) {
+        Integer[] used = new Integer[offsets.length];
+        int count = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] != 0) {
+                used[count++] = i;
+            }
+        }
+        Arrays.sort(used, 0, count, (a, b) -> Long.compare(offsets[a], offsets[b]));
+        
+        long pos = headerSize;
+        for (int i = 0; i < count; i++) {
+            int slot = used[i];
+            if (offsets[slot] > pos) {
+                release(pos, offsets[slot] - pos);
+            }
+            pos = Math.max(pos, offsets[slot] + capacities[slot]);
+        }
+        if (end > pos) {
+            release(pos, end - pos);
+        }
+    }
+    
+    /**
+     * Reads a chunk from given slot.
+     * @param slot Slot index.
+     * @param allocator Allocator for chunk data.
+     * @return Chunk record, or null if slot is empty.
+     * @throws IOException When reading fails.
+     */
+    ChunkRecord read(int slot, MemoryAllocator allocator) throws IOException {
+        lock.readLock().lock();
+        try {
+            long offset = offsets[slot];
+            int recordLength = lengths[slot];
+            if (offset == 0) {
+                return null;
+            }
+            
+            ByteBuffer buf = scratch(recordLength);
+            readFully(buf, offset);
+            buf.flip();
+            
+            byte type = buf.get();
+            int length = recordLength - 1;
+            long addr = 0;
+            if (length > 0) {
+                addr = allocator.allocate(length);
+                copyFromBuffer(buf, addr, length);
+            }
+            return new ChunkRecord(type, addr, length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Writes a chunk to given slot. Record is written to free space and
+     * forced to disk before header entry is switched to it.
+     * @param slot Slot index.
+     * @param type Chunk type.
+     * @param addr Address of chunk data.
+     * @param length Length of chunk data.
+     * @throws IOException When writing fails.
+     */
+    void write(int slot, byte type, @Pointer long addr, int length) throws IOException {
+        int recordLength = length + 1;
+        ByteBuffer buf = scratch(recordLength);
+        buf.put(type);
+        copyToBuffer(addr, length, buf);
+        buf.flip();
+        
+        lock.writeLock().lock();
+        try {
+            long offset = allocate(recordLength);
+            try {
+                writeFully(buf, offset);
+                channel.force(false);
+            } catch (IOException e) {
+                release(offset, recordLength); // Header does not refer to it
+                throw e;
+            }
+            reusePendingFree(); // Force made earlier header entries durable
+            
+            // Data is on disk, now point header to it
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            entry.putLong(offset).putInt(recordLength).putInt(recordLength);
+            entry.flip();
+            writeFully(entry, (long) slot * ENTRY_SIZE);
+            
+            if (offsets[slot] != 0) { // Old record might still be what is on disk
+                pendingFree.add(new long[] {offsets[slot], capacities[slot]});
+            }
+            offsets[slot] = offset;
+            capacities[slot] = recordLength;
+            lengths[slot] = recordLength;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Finds space for a record. Caller must hold write lock.
+     * @param length Length of record.
+     * @return Offset of the space.
+     */
+    private long allocate(int length) {
+        for (Map.Entry<Long, Long> extent : free.entrySet()) {
+            if (extent.getValue() >= length) { // First fit
+                long offset = extent.getKey();
+                long rest = extent.getValue() - length;
+                free.remove(offset);
+                if (rest > 0) {
+                    free.put(offset + length, rest);
+                }
+                return offset;
+            }
+        }
+        long offset = end;
+        end += length;
+        return offset;
+    }
+    
+    /**
+     * Adds space to free extents, merging it with adjacent ones. Caller
+     * must hold write lock.
+     * @param offset Offset of space.
+     * @param length Length of space.
+     */
+    private void release(long offset, long length) {
+        Map.Entry<Long, Long> before = free.floorEntry(offset);
+        if (before != null && before.getKey() + before.getValue() == offset) {
+            offset = before.getKey();
+            length += before.getValue();
+            free.remove(offset);
+        }
+        Long after = free.remove(offset + length);
+        if (after != null) {
+            length += after;
+        }
+        free.put(offset, length);
+    }
+    
+    /**
+     * Lets space of replaced records be reused, after their header entries
+     * have been forced to disk. Caller must hold write lock.
+     */
+    private void reusePendingFree() {
+        for (long[] extent : pendingFree) {
+            release(extent[0], extent[1]);
+        }
+        pendingFree.clear();
+    }
+    
+    /**
+     * Checks which slots contain chunks.
+     * @return Array where non-empty slots are true.
+     */
+    boolean[] getUsedSlots() {
+        lock.readLock().lock();
+        try {
+            boolean[] used = new boolean[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                used[i] = offsets[i] != 0;
+            }
+            return used;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Forces written data to storage device.
+     * @throws IOException When forcing fails.
+     */
+    void force() throws IOException {
+        lock.writeLock().lock();
+        try {
+            channel.force(false);
+            reusePendingFree();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+    
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read == -1) {
+                throw new IOException("unexpected end of region file");
+            }
+            position += read;
+        }
+    }
+    
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+    
+    /**
+     * Gets a cleared scratch buffer of this thread, limited to given size.
+     */
+    private static ByteBuffer scratch(int size) {
+        ByteBuffer buf = scratch.get();
+        if (buf.capacity() < size) { // Grow to next power of two
+            buf = allocateScratch(Integer.highestOneBit(size - 1) << 1);
+            scratch.set(buf);
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+    
+    private static ByteBuffer allocateScratch(int capacity) {
+        // Native order keeps payload bytes as they are in memory
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+    
+    /**
+     * Copies offheap memory to buffer, mostly 8 bytes at time.
+     */
+    static void copyToBuffer(@Pointer long addr, int length, ByteBuffer buf) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            buf.putLong(mem.readLong(addr + i));
+        }
+        for (; i < length; i++) {
+            buf.put(mem.readByte(addr + i));
+        }
+    }
+    
+    /**
+     * Copies from buffer to offheap memory, mostly 8 bytes at time.
+     */
+    static void copyFromBuffer(ByteBuffer buf, @Pointer long addr, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            mem.writeLong(addr + i, buf.getLong());
+        }
+        for (; i < length; i++) {
+            mem.writeByte(addr + i, buf.get());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.ritualsoftheold.terra.server.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import com.ritualsoftheold.terra.server.MemoryAllocator;
+import com.ritualsoftheold.terra.server.Pointer;
+
+/**
+ * Stores chunks in region files. Each region file holds a fixed, aligned
+ * block of chunk keys; lowest bits of a key select slot in the file, and
+ * rest of them select the file. When keys are Morton codes of chunk
+ * coordinates and slot bits are a multiple of three, every region file
+ * holds a cube of chunks, so disk access stays local while players explore
+ * an area.
+ * 
+ * <p>All I/O is positional and happens on given executor.
+ *
+ */
+public class RegionStorage implements Closeable {
+    
+    /**
+     * Directory where region files are.
+     */
+    private final Path directory;
+    
+    /**
+     * How many lowest bits of a key select slot.
+     */
+    private final int slotBits;
+    
+    /**
+     * Runs all I/O.
+     */
+    private final Executor executor;
+    
+    /**
+     * Open region files by region index.
+     */
+    private final Map<Long, RegionFile> regions;
+    
+    /**
+     * Creates a region storage.
+     * @param directory Directory for region files. Created if it does not
+     * exist.
+     * @param slotBits How many chunks one region holds, as power of two.
+     * For example, 12 gives regions of 4096 chunks.
+     * @param executor Executor for I/O.
+     * @throws IOException When directory cannot be created.
+     */
+    public RegionStorage(Path directory, int slotBits, Executor executor) throws IOException {
+        if (slotBits < 0 || slotBits > 20) {
+            throw new IllegalArgumentException("slot bits must be between 0 and 20");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.slotBits = slotBits;
+        this.executor = executor;
+        this.regions = new ConcurrentHashMap<>();
+    }
+    
+    /**
+     * Reads a chunk asynchronously.
+     * @param key Chunk key.
+     * @param allocator Allocator for chunk data.
+     * @return Future for chunk record, which is null if the chunk has not
+     * been saved.
+     */
+    public CompletableFuture<ChunkRecord> read(long key, MemoryAllocator allocator) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return region(key).read(slot(key), allocator);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+    
+    /**
+     * Writes a chunk asynchronously. Chunk data must stay valid until
+     * returned future completes.
+     * @param key Chunk key.
+     * @param type Chunk type.
+     * @param addr Address of chunk data.
+     * @param length Length of chunk data.
+     * @return Future that completes when data has been written.
+     */
+    public CompletableFuture<Void> write(long key, byte type, @Pointer long addr, int length) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                region(key).write(slot(key), type, addr, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+    
+    /**
+     * Finds keys of all saved chunks in given key range.
+     * @param first First key (inclusive).
+     * @param count How many keys to check.
+     * @return Future for saved keys, in ascending order.
+     */
+    public CompletableFuture<long[]> findSaved(long first, int count) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                List<Long> found = new ArrayList<>();
+                long key = first;
+                long end = first + count;
+                while (key < end) {
+                    long region = key >>> slotBits;
+                    boolean[] used = region(key).getUsedSlots();
+                    long regionEnd = Math.min(end, (region + 1) << slotBits);
+                    for (; key < regionEnd; key++) {
+                        if (used[slot(key)]) {
+                            found.add(key);
+                        }
+                    }
+                }
+                return found.stream().mapToLong(Long::longValue).toArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+    
+    /**
+     * Forces all written data to storage device.
+     * @return Future that completes when data is durable.
+     */
+    public CompletableFuture<Void> flush() {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                for (RegionFile file : regions.values()) {
+                    file.force();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+    
+    /**
+     * Closes all region files. Pending operations must have completed.
+     * @throws IOException When closing fails.
+     */
+    @Override
+    public void close() throws IOException {
+        for (RegionFile file : regions.values()) {
+            file.close();
+        }
+        regions.clear();
+    }
+    
+    private int slot(long key) {
+        return (int) (key & ((1L << slotBits) - 1));
+    }
+    
+    /**
+     * Gets region file for given key, opening it if needed.
+     */
+    private RegionFile region(long key) throws IOException {
+        long index = key >>> slotBits;
+        RegionFile file = regions.get(index);
+        if (file != null) {
+            return file;
+        }
+        
+        try {
+            return regions.computeIfAbsent(index, i -> {
+                try {
+                    return new RegionFile(directory.resolve("r." + Long.toHexString(i) + ".region"), 1 << slotBits);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
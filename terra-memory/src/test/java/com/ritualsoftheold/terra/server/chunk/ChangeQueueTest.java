@@ -0,0 +1,126 @@
+package com.ritualsoftheold.terra.server.chunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ritualsoftheold.terra.server.MemoryUseListener;
+
+public class ChangeQueueTest {
+    
+    private static final int PRODUCERS = 4;
+    
+    private static final int PER_PRODUCER = 20_000;
+    
+    private static final MemoryUseListener noMemListener = new MemoryUseListener() {
+        
+        @Override
+        public void onAllocate(long amount) {}
+        
+        @Override
+        public void onFree(long amount) {}
+    };
+    
+    private ExecutorService executor;
+    
+    private ChunkBuffer buf;
+    
+    private int index;
+    
+    @Before
+    public void createBuffer() {
+        executor = Executors.newFixedThreadPool(PRODUCERS + 1);
+        ChunkBuffer.Builder builder = new ChunkBuffer.Builder()
+                .maxChunks(4)
+                .queueSize(16) // Small, so that producers often find it full
+                .memListener(noMemListener);
+        ChunkStorage storage = new ChunkStorage(null, builder, 1, executor);
+        int id = storage.newChunk();
+        buf = storage.getBuffer(id >>> 16);
+        index = id & 0xffff;
+    }
+    
+    @After
+    public void unloadBuffer() {
+        executor.shutdown();
+        buf.unload();
+    }
+    
+    @Test
+    public void emptyQueueDrainsNothing() {
+        assertFalse(buf.hasQueuedChanges(index));
+        assertEquals(0, buf.drainChanges(index, entry -> {}));
+    }
+    
+    @Test
+    public void fullQueueRejectsChanges() {
+        for (int i = 0; i < 16; i++) {
+            assertTrue(buf.enqueueChange(index, i));
+        }
+        assertFalse(buf.enqueueChange(index, 16));
+        
+        List<Long> drained = new ArrayList<>();
+        assertEquals(16, buf.drainChanges(index, drained::add));
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i, (long) drained.get(i));
+        }
+        assertTrue(buf.enqueueChange(index, 16)); // Other half is free
+    }
+    
+    @Test
+    public void drainSeesEveryChangeOnceInOrder() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            long producer = p;
+            producers.add(executor.submit(() -> {
+                start.await();
+                for (int seq = 0; seq < PER_PRODUCER; seq++) {
+                    while (!buf.enqueueChange(index, producer << 32 | seq)) {
+                        Thread.onSpinWait(); // Full, wait for drainer
+                    }
+                }
+                return null;
+            }));
+        }
+        
+        // One drainer, like flushes of a chunk
+        long[] next = new long[PRODUCERS];
+        int[] received = new int[1];
+        AtomicBoolean producing = new AtomicBoolean(true);
+        Future<?> drainer = executor.submit(() -> {
+            while (producing.get() || buf.hasQueuedChanges(index)) {
+                received[0] += buf.drainChanges(index, entry -> {
+                    int producer = (int) (entry >>> 32);
+                    assertEquals(next[producer], entry & 0xffffffffL);
+                    next[producer]++;
+                });
+            }
+            return null;
+        });
+        
+        start.countDown();
+        for (Future<?> producer : producers) {
+            producer.get();
+        }
+        producing.set(false);
+        drainer.get();
+        
+        assertEquals(PRODUCERS * PER_PRODUCER, received[0]);
+        for (int p = 0; p < PRODUCERS; p++) {
+            assertEquals(PER_PRODUCER, next[p]);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.ritualsoftheold.terra.server.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ritualsoftheold.terra.server.MemoryUseListener;
+import com.ritualsoftheold.terra.server.io.RegionStorage;
+
+import net.openhft.chronicle.core.Memory;
+import net.openhft.chronicle.core.OS;
+
+public class ChunkStorageUnloadTest {
+    
+    private static final Memory mem = OS.memory();
+    
+    private static final MemoryUseListener noMemListener = new MemoryUseListener() {
+        
+        @Override
+        public void onAllocate(long amount) {}
+        
+        @Override
+        public void onFree(long amount) {}
+    };
+    
+    private Path dir;
+    
+    private ExecutorService executor;
+    
+    private RegionStorage regionStorage;
+    
+    private ChunkStorage storage;
+    
+    @Before
+    public void createStorage() throws IOException {
+        dir = Files.createTempDirectory("terra-storage");
+        executor = Executors.newFixedThreadPool(2);
+        regionStorage = new RegionStorage(dir, 4, executor);
+        ChunkBuffer.Builder builder = new ChunkBuffer.Builder()
+                .maxChunks(16)
+                .queueSize(8)
+                .memListener(noMemListener);
+        // Registry is only needed for flushing changes
+        storage = new ChunkStorage(null, builder, 4, executor, regionStorage);
+    }
+    
+    @After
+    public void closeStorage() throws IOException {
+        regionStorage.close();
+        executor.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+    
+    @Test
+    public void unloadSavesAndReloads() {
+        int id = storage.newChunk();
+        int empty = storage.newChunk();
+        ChunkBuffer buf = storage.getBuffer(id >>> 16);
+        setData(buf, id & 0xffff, pattern(200, 7));
+        
+        storage.unloadBuffer(id >>> 16, true).join();
+        assertNull(storage.getBuffer(id >>> 16));
+        
+        ChunkBuffer reloaded = storage.getOrLoadBuffer(id >>> 16);
+        assertEquals(2, reloaded.getChunkCount());
+        assertArrayEquals(pattern(200, 7), getData(reloaded, id & 0xffff));
+        assertEquals(0, reloaded.getChunkAddress(empty & 0xffff));
+        assertFalse(reloaded.isDirty(id & 0xffff)); // Same as on disk
+    }
+    
+    @Test
+    public void reloadDuringUnloadSeesSavedData() {
+        int id = storage.newChunk();
+        ChunkBuffer buf = storage.getBuffer(id >>> 16);
+        setData(buf, id & 0xffff, pattern(100, 1));
+        storage.unloadBuffer(id >>> 16, true).join();
+        
+        // Change it after it has been saved once, then unload and load at once
+        buf = storage.getOrLoadBuffer(id >>> 16);
+        setData(buf, id & 0xffff, pattern(150, 2));
+        storage.unloadBuffer(id >>> 16, true);
+        ChunkBuffer reloaded = storage.getOrLoadBuffer(id >>> 16);
+        
+        // Either unloading was cancelled or it saved before we read
+        assertArrayEquals(pattern(150, 2), getData(reloaded, id & 0xffff));
+    }
+    
+    @Test
+    public void queuedChangesKeepBufferLoaded() {
+        int id = storage.newChunk();
+        ChunkBuffer buf = storage.getBuffer(id >>> 16);
+        assertTrue(storage.enqueueChange(id, 42));
+        
+        // No flush targets, so changes cannot be applied before saving
+        try {
+            storage.unloadBuffer(id >>> 16, true).join();
+            fail("unload should have failed");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertSame(buf, storage.getBuffer(id >>> 16));
+        assertTrue(buf.hasQueuedChanges(id & 0xffff));
+    }
+    
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+    
+    private static void setData(ChunkBuffer buf, int index, byte[] data) {
+        long addr = buf.getAllocator().allocate(data.length);
+        for (int i = 0; i < data.length; i++) {
+            mem.writeByte(addr + i, data[i]);
+        }
+        long stamp = buf.beginWrite(index);
+        try {
+            buf.setChunk(index, ChunkType.UNCOMPRESSED, addr, data.length);
+        } finally {
+            buf.endWrite(stamp);
+        }
+    }
+    
+    private static byte[] getData(ChunkBuffer buf, int index) {
+        assertEquals(ChunkType.UNCOMPRESSED, buf.getChunkType(index));
+        long addr = buf.getChunkAddress(index);
+        byte[] data = new byte[buf.getChunkLength(index)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = mem.readByte(addr + i);
+        }
+        return data;
+    }
+}
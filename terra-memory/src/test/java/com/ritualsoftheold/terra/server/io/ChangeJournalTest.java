@@ -0,0 +1,146 @@
+package com.ritualsoftheold.terra.server.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangeJournalTest {
+    
+    private Path dir;
+    
+    private Path path;
+    
+    private ExecutorService executor;
+    
+    @Before
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("terra-journal");
+        path = dir.resolve("changes.journal");
+        executor = Executors.newSingleThreadExecutor();
+    }
+    
+    @After
+    public void deleteDirectory() throws IOException {
+        executor.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+    
+    @Test
+    public void replayReturnsCommittedEntries() throws IOException {
+        try (ChangeJournal journal = new ChangeJournal(path, executor)) {
+            for (int i = 0; i < 1000; i++) {
+                journal.append(i % 3, i);
+            }
+            journal.commit().join();
+        }
+        
+        List<long[]> entries = replay();
+        assertEquals(1000, entries.size());
+        
+        // Order between chunks may change, but not within one
+        long[] last = {-1, -1, -1};
+        for (long[] entry : entries) {
+            int chunkId = (int) entry[0];
+            assertEquals(chunkId, entry[1] % 3);
+            assertTrue(entry[1] > last[chunkId]);
+            last[chunkId] = entry[1];
+        }
+    }
+    
+    @Test
+    public void tornTailIsCutOff() throws IOException {
+        try (ChangeJournal journal = new ChangeJournal(path, executor)) {
+            for (int i = 0; i < 10; i++) {
+                journal.append(1, i);
+            }
+            journal.commit().join();
+        }
+        
+        // Crash in middle of next record leaves a partial and a garbage one
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19}));
+        }
+        
+        assertEquals(10, replay().size());
+        assertEquals(10 * 16, Files.size(path)); // Tail was truncated
+        
+        // New entries go right after valid ones
+        try (ChangeJournal journal = new ChangeJournal(path, executor)) {
+            journal.replay((chunkId, entry) -> {});
+            journal.append(1, 10);
+            journal.commit().join();
+        }
+        List<long[]> entries = replay();
+        assertEquals(11, entries.size());
+        assertEquals(10, entries.get(10)[1]);
+    }
+    
+    @Test
+    public void checkpointRemovesEntriesBeforeMark() throws IOException {
+        try (ChangeJournal journal = new ChangeJournal(path, executor)) {
+            for (int i = 0; i < 5; i++) {
+                journal.append(1, i);
+            }
+            long mark = journal.mark();
+            for (int i = 5; i < 8; i++) {
+                journal.append(1, i);
+            }
+            journal.commit().join();
+            journal.checkpoint(mark);
+            
+            // Appending after checkpoint continues in the new file
+            journal.append(1, 8);
+            journal.commit().join();
+        }
+        
+        List<long[]> entries = replay();
+        assertEquals(4, entries.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(5 + i, entries.get(i)[1]);
+        }
+    }
+    
+    @Test
+    public void checkpointCommitsEntriesBeforeMark() throws IOException {
+        try (ChangeJournal journal = new ChangeJournal(path, executor)) {
+            journal.append(1, 0);
+            long mark = journal.mark();
+            journal.append(1, 1);
+            journal.checkpoint(mark); // Nothing was committed yet
+            journal.commit().join();
+        }
+        
+        List<long[]> entries = replay();
+        assertEquals(1, entries.size());
+        assertEquals(1, entries.get(0)[1]);
+    }
+    
+    /**
+     * Opens the journal again and replays it.
+     */
+    private List<long[]> replay() throws IOException {
+        List<long[]> entries = new ArrayList<>();
+        try (ChangeJournal journal = new ChangeJournal(path, executor)) {
+            journal.replay((chunkId, entry) -> entries.add(new long[] {chunkId, entry}));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,197 @@
+package com.ritualsoftheold.terra.server.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ritualsoftheold.terra.server.MemoryAllocator;
+
+import net.openhft.chronicle.core.Memory;
+import net.openhft.chronicle.core.OS;
+
+public class RegionFileTest {
+    
+    private static final Memory mem = OS.memory();
+    
+    private static final MemoryAllocator allocator = new MemoryAllocator() {
+        
+        @Override
+        public long allocate(long length) {
+            return mem.allocate(length);
+        }
+        
+        @Override
+        public void free(long addr, long length) {
+            mem.freeMemory(addr, length);
+        }
+    };
+    
+    private Path dir;
+    
+    private Path path;
+    
+    @Before
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("terra-region");
+        path = dir.resolve("r.0");
+    }
+    
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+    
+    @Test
+    public void emptySlotReadsNull() throws IOException {
+        try (RegionFile file = new RegionFile(path, 4)) {
+            assertNull(file.read(0, allocator));
+        }
+    }
+    
+    @Test
+    public void rewriteReadsBackNewest() throws IOException {
+        try (RegionFile file = new RegionFile(path, 4)) {
+            write(file, 0, (byte) 1, pattern(100, 1));
+            write(file, 0, (byte) 2, pattern(300, 2)); // Grows
+            write(file, 0, (byte) 3, pattern(50, 3)); // Shrinks
+            assertRecord(file, 0, (byte) 3, pattern(50, 3));
+        }
+        
+        try (RegionFile file = new RegionFile(path, 4)) { // Header was written too
+            assertRecord(file, 0, (byte) 3, pattern(50, 3));
+        }
+    }
+    
+    @Test
+    public void slotsAreIndependent() throws IOException {
+        try (RegionFile file = new RegionFile(path, 4)) {
+            write(file, 0, (byte) 1, pattern(64, 1));
+            write(file, 2, (byte) 2, pattern(128, 2));
+            write(file, 0, (byte) 3, pattern(200, 3));
+        }
+        
+        try (RegionFile file = new RegionFile(path, 4)) {
+            assertArrayEquals(new boolean[] {true, false, true, false}, file.getUsedSlots());
+            assertRecord(file, 0, (byte) 3, pattern(200, 3));
+            assertRecord(file, 2, (byte) 2, pattern(128, 2));
+        }
+    }
+    
+    @Test
+    public void rewriteKeepsOldRecord() throws IOException {
+        try (RegionFile file = new RegionFile(path, 4)) {
+            write(file, 1, (byte) 1, pattern(100, 1));
+            long oldOffset = headerOffset(1);
+            
+            // Same size would have fit in place
+            write(file, 1, (byte) 2, pattern(100, 2));
+            assertNotEquals(oldOffset, headerOffset(1));
+            
+            // Until header switch is durable, old record must stay intact
+            byte[] old = new byte[100];
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buf = ByteBuffer.wrap(old);
+                channel.read(buf, oldOffset + 1);
+            }
+            assertArrayEquals(pattern(100, 1), old);
+        }
+    }
+    
+    @Test
+    public void spaceIsReusedAfterForce() throws IOException {
+        try (RegionFile file = new RegionFile(path, 4)) {
+            write(file, 0, (byte) 1, pattern(100, 1));
+            long oldOffset = headerOffset(0);
+            write(file, 0, (byte) 2, pattern(100, 2));
+            file.force();
+            
+            write(file, 3, (byte) 3, pattern(100, 3));
+            assertEquals(oldOffset, headerOffset(3));
+            assertRecord(file, 0, (byte) 2, pattern(100, 2));
+            assertRecord(file, 3, (byte) 3, pattern(100, 3));
+        }
+    }
+    
+    @Test
+    public void gapsAreFoundOnOpen() throws IOException {
+        long gap;
+        try (RegionFile file = new RegionFile(path, 4)) {
+            write(file, 0, (byte) 1, pattern(100, 1));
+            gap = headerOffset(0);
+            write(file, 1, (byte) 1, pattern(100, 1));
+            write(file, 0, (byte) 2, pattern(100, 2)); // Leaves a gap at start
+        }
+        
+        try (RegionFile file = new RegionFile(path, 4)) {
+            write(file, 2, (byte) 3, pattern(80, 3));
+            assertEquals(gap, headerOffset(2));
+            assertRecord(file, 0, (byte) 2, pattern(100, 2));
+            assertRecord(file, 1, (byte) 1, pattern(100, 1));
+        }
+    }
+    
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+    
+    private static void write(RegionFile file, int slot, byte type, byte[] data) throws IOException {
+        long addr = mem.allocate(data.length);
+        try {
+            for (int i = 0; i < data.length; i++) {
+                mem.writeByte(addr + i, data[i]);
+            }
+            file.write(slot, type, addr, data.length);
+        } finally {
+            mem.freeMemory(addr, data.length);
+        }
+    }
+    
+    private static void assertRecord(RegionFile file, int slot, byte type, byte[] data) throws IOException {
+        ChunkRecord record = file.read(slot, allocator);
+        try {
+            assertEquals(type, record.getType());
+            assertEquals(data.length, record.getLength());
+            byte[] read = new byte[record.getLength()];
+            for (int i = 0; i < read.length; i++) {
+                read[i] = mem.readByte(record.getAddress() + i);
+            }
+            assertArrayEquals(data, read);
+        } finally {
+            if (record.getAddress() != 0) {
+                allocator.free(record.getAddress(), record.getLength());
+            }
+        }
+    }
+    
+    /**
+     * Reads offset of a slot from header on disk.
+     */
+    private long headerOffset(int slot) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer entry = ByteBuffer.allocate(8);
+            channel.read(entry, slot * 16L);
+            entry.flip();
+            return entry.getLong();
+        }
+    }
+}